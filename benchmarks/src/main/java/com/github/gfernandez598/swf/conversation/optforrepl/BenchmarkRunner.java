@@ -0,0 +1,79 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>
+ * Runs the benchmarks with 1, 2, 4... up to N threads sharing the same
+ * session, with the GC profiler enabled so the allocation per operation
+ * (<code>gc.alloc.rate.norm</code>) is reported along with the throughput and
+ * the latency percentiles.
+ * </p>
+ * <p>
+ * Usage:
+ * <code>java -cp target/benchmarks.jar com.github.gfernandez598.swf.conversation.optforrepl.BenchmarkRunner [maxThreads [regexp]]</code>
+ * , where <code>maxThreads</code> defaults to the number of available
+ * processors and <code>regexp</code> selects the benchmarks to run (all by
+ * default). The results of each run are also written, as CSV, into
+ * <code>jmh-result-&lt;threads&gt;t.csv</code>.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner() {
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime
+				.getRuntime().availableProcessors();
+		String include = args.length > 1 ? args[1] : ".*Benchmark.*";
+
+		for (int threads = 1; threads <= maxThreads; threads = nextThreads(
+				threads, maxThreads)) {
+			Options options = new OptionsBuilder().include(include)
+					.threads(threads).addProfiler(GCProfiler.class)
+					.resultFormat(ResultFormatType.CSV)
+					.result("jmh-result-" + threads + "t.csv").build();
+			new Runner(options).run();
+		}
+	}
+
+	/**
+	 * Doubles the number of threads, making sure the last run is done with
+	 * exactly <code>maxThreads</code>.
+	 */
+	private static int nextThreads(int threads, int maxThreads) {
+		if (threads == maxThreads) {
+			return maxThreads + 1;
+		}
+		return Math.min(threads * 2, maxThreads);
+	}
+}
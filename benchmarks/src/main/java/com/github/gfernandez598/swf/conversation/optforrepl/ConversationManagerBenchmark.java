@@ -0,0 +1,124 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.webflow.conversation.Conversation;
+
+/**
+ * <p>
+ * Hot paths of {@link ReplicationOptimizedSessionBindingConversationManager}
+ * and its {@link SessionMapConversationContainer}, as exercised by Spring Web
+ * Flow on every request.
+ * </p>
+ * <p>
+ * Reports both throughput and the sampled latency distribution (percentiles).
+ * Run it through {@link BenchmarkRunner} to get the allocation rate per
+ * operation and the results for increasing number of threads.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversationManagerBenchmark {
+
+	/**
+	 * A new flow execution: begins a conversation (evicting the oldest one
+	 * since the session is full).
+	 */
+	@Benchmark
+	public Conversation beginConversation(SessionState session,
+			RequestState request) {
+		return session.conversationManager.beginConversation(session
+				.newConversationParameters());
+	}
+
+	/**
+	 * Same as {@link #beginConversation} but skipping the manager and the id
+	 * generator.
+	 */
+	@Benchmark
+	public Conversation createAndAddConversation(SessionState session,
+			RequestState request) {
+		return session.getConversationContainer().createAndAddConversation(
+				request.newConversationId(),
+				session.newConversationParameters());
+	}
+
+	/**
+	 * Lookup of an existing conversation.
+	 */
+	@Benchmark
+	public Conversation getConversation(SessionState session,
+			RequestState request) {
+		return session.conversationManager.getConversation(request
+				.nextConversationId());
+	}
+
+	/**
+	 * A request resuming an existing flow execution: lookup, lock and unlock
+	 * (which re-binds the conversation for replication).
+	 */
+	@Benchmark
+	public Conversation lockAndUnlock(SessionState session,
+			RequestState request) {
+		Conversation conversation = session.conversationManager
+				.getConversation(request.nextConversationId());
+		conversation.lock();
+		conversation.unlock();
+		return conversation;
+	}
+
+	/**
+	 * What replicating a conversation costs: serializing it and reading it
+	 * back, as the servlet containers of both nodes do.
+	 */
+	@Benchmark
+	public Object serializationRoundTrip(SessionState session,
+			RequestState request) throws IOException, ClassNotFoundException {
+		Conversation conversation = session.conversationManager
+				.getConversation(request.nextConversationId());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(conversation);
+		out.close();
+		return new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray())).readObject();
+	}
+}
@@ -0,0 +1,87 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.webflow.context.ExternalContextHolder;
+import org.springframework.webflow.conversation.ConversationId;
+import org.springframework.webflow.conversation.impl.SimpleConversationId;
+
+/**
+ * <p>
+ * Per thread state: every benchmark thread plays the role of a concurrent
+ * request of the same user, so it gets its own external context bound to the
+ * shared session of {@link SessionState}.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+@State(Scope.Thread)
+public class RequestState {
+
+	/**
+	 * Source of unique ids for the conversations created straight into the
+	 * container, shared by every thread.
+	 */
+	private static final AtomicLong idSequence = new AtomicLong();
+
+	private ConversationId[] conversationIds;
+
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp(SessionState session) {
+		ExternalContextHolder.setExternalContext(session.newExternalContext());
+		conversationIds = session.conversationIds;
+		// spread the threads among the conversations
+		next = (int) (Thread.currentThread().getId() % conversationIds.length);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		ExternalContextHolder.setExternalContext(null);
+	}
+
+	/**
+	 * Returns the id of one of the pre-populated conversations, round-robin.
+	 */
+	ConversationId nextConversationId() {
+		if (++next == conversationIds.length) {
+			next = 0;
+		}
+		return conversationIds[next];
+	}
+
+	/**
+	 * Returns a brand new conversation id, unique among all the threads.
+	 */
+	ConversationId newConversationId() {
+		return new SimpleConversationId(Long.valueOf(idSequence
+				.incrementAndGet()));
+	}
+}
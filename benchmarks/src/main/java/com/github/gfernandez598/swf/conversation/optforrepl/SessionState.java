@@ -0,0 +1,135 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.binding.collection.SharedMapDecorator;
+import org.springframework.webflow.context.ExternalContextHolder;
+import org.springframework.webflow.conversation.ConversationId;
+import org.springframework.webflow.conversation.ConversationParameters;
+import org.springframework.webflow.core.collection.LocalSharedAttributeMap;
+import org.springframework.webflow.core.collection.SharedAttributeMap;
+import org.springframework.webflow.test.MockExternalContext;
+
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.HistogramConversationMetrics;
+
+/**
+ * <p>
+ * A single HTTP session shared by every benchmark thread, pre-populated with
+ * {@link #conversations} conversations. The conversation manager is
+ * configured to hold exactly that many conversations so creating a new one
+ * also exercises the eviction of the oldest.
+ * </p>
+ * <p>
+ * The session map is backed by a concurrent map, like the session of a
+ * servlet container, so it can be safely shared by all the threads.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+@State(Scope.Benchmark)
+public class SessionState {
+
+	/**
+	 * Number of conversations alive in the session.
+	 */
+	@Param({ "5", "50", "500" })
+	public int conversations;
+
+	/**
+	 * How the conversation container guards its conversations.
+	 */
+	@Param({ "CONTAINER", "CONVERSATION" })
+	public ContainerLockingMode lockingMode;
+
+	/**
+	 * Whether the locks are measured, to see the cost of leaving it on.
+	 */
+	@Param({ "false", "true" })
+	public boolean lockMetrics;
+
+	ReplicationOptimizedSessionBindingConversationManager conversationManager;
+
+	SharedAttributeMap<Object> sessionMap;
+
+	ConversationId[] conversationIds;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		conversationManager = new ReplicationOptimizedSessionBindingConversationManager();
+		conversationManager.setMaxConversations(conversations);
+		conversationManager.setContainerLockingMode(lockingMode);
+		if (lockMetrics) {
+			conversationManager
+					.setConversationMetrics(new HistogramConversationMetrics());
+		}
+		sessionMap = new LocalSharedAttributeMap<Object>(
+				new SharedMapDecorator<String, Object>(
+						new ConcurrentHashMap<String, Object>()));
+
+		ExternalContextHolder.setExternalContext(newExternalContext());
+		try {
+			conversationIds = new ConversationId[conversations];
+			for (int i = 0; i < conversations; i++) {
+				conversationIds[i] = conversationManager.beginConversation(
+						newConversationParameters()).getId();
+			}
+		} finally {
+			ExternalContextHolder.setExternalContext(null);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		sessionMap.clear();
+	}
+
+	/**
+	 * Create a new external context bound to the shared session, as every
+	 * request of the same user would have.
+	 */
+	MockExternalContext newExternalContext() {
+		MockExternalContext externalContext = new MockExternalContext();
+		externalContext.setSessionMap(sessionMap);
+		return externalContext;
+	}
+
+	ConversationParameters newConversationParameters() {
+		return new ConversationParameters("benchmark-flow", "caption",
+				"description");
+	}
+
+	/**
+	 * Returns the conversation container of the shared session.
+	 */
+	SessionMapConversationContainer getConversationContainer() {
+		return (SessionMapConversationContainer) sessionMap
+				.get(conversationManager.getSessionKey());
+	}
+}
@@ -0,0 +1,180 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.binding.collection.SharedMapDecorator;
+import org.springframework.webflow.context.ExternalContextHolder;
+import org.springframework.webflow.conversation.Conversation;
+import org.springframework.webflow.conversation.ConversationId;
+import org.springframework.webflow.conversation.ConversationParameters;
+import org.springframework.webflow.core.collection.LocalSharedAttributeMap;
+import org.springframework.webflow.core.collection.SharedAttributeMap;
+import org.springframework.webflow.test.MockExternalContext;
+
+/**
+ * <p>
+ * Thousands of concurrent requests, each one handled by its own virtual
+ * thread, hitting the conversations of a few sessions, for every
+ * {@link ContainerLockingMode}. Each request looks its conversation up, locks
+ * it, does some blocking work (i.e. a database call) while holding the lock,
+ * writes an attribute and unlocks it. Reports the requests per second.
+ * </p>
+ * <p>
+ * Virtual threads need JDK 21 or later; on older JDKs the requests run on a
+ * pool of 200 platform threads instead, like a servlet container would.
+ * </p>
+ * <p>
+ * Usage:
+ * <code>java -cp target/benchmarks.jar com.github.gfernandez598.swf.conversation.optforrepl.VirtualThreadsBenchmark [requests [sessions [workMillis]]]</code>
+ * , 10000 requests over 10 sessions doing 1 millisecond of work by default.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public final class VirtualThreadsBenchmark {
+
+	private static final int CONVERSATIONS_PER_SESSION = 5;
+
+	private static final int PLATFORM_THREADS = 200;
+
+	private VirtualThreadsBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int requests = args.length > 0 ? Integer.parseInt(args[0])
+				: 10000;
+		final int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		final long workMillis = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+		System.out.println(isVirtualThreadsAvailable() ? "Using virtual threads"
+				: "Virtual threads not available, using " + PLATFORM_THREADS
+						+ " platform threads");
+		for (int round = 0; round < 2; round++) {
+			// the first round is a warm up
+			for (ContainerLockingMode lockingMode : ContainerLockingMode
+					.values()) {
+				final double throughput = run(lockingMode, requests, sessions,
+						workMillis);
+				if (round > 0) {
+					System.out.printf("%-16s %10.0f requests/s%n",
+							lockingMode, throughput);
+				}
+			}
+		}
+	}
+
+	private static double run(ContainerLockingMode lockingMode,
+			int requests, int sessions, final long workMillis)
+			throws Exception {
+		final ReplicationOptimizedSessionBindingConversationManager conversationManager = new ReplicationOptimizedSessionBindingConversationManager();
+		conversationManager.setContainerLockingMode(lockingMode);
+		conversationManager.setLockTimeoutSeconds(600);
+		final SharedAttributeMap<?>[] sessionMaps = new SharedAttributeMap<?>[sessions];
+		final ConversationId[][] conversationIds = new ConversationId[sessions][CONVERSATIONS_PER_SESSION];
+		for (int i = 0; i < sessions; i++) {
+			sessionMaps[i] = new LocalSharedAttributeMap<Object>(
+					new SharedMapDecorator<String, Object>(
+							new ConcurrentHashMap<String, Object>()));
+			ExternalContextHolder.setExternalContext(newExternalContext(
+					sessionMaps[i]));
+			for (int j = 0; j < CONVERSATIONS_PER_SESSION; j++) {
+				conversationIds[i][j] = conversationManager.beginConversation(
+						new ConversationParameters("benchmark-flow",
+								"caption", "description")).getId();
+			}
+			ExternalContextHolder.setExternalContext(null);
+		}
+
+		final AtomicInteger errors = new AtomicInteger();
+		final ExecutorService executor = newExecutor();
+		final long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			final int session = i % sessions;
+			final ConversationId conversationId = conversationIds[session][(i / sessions)
+					% CONVERSATIONS_PER_SESSION];
+			executor.execute(new Runnable() {
+				public void run() {
+					ExternalContextHolder
+							.setExternalContext(newExternalContext(sessionMaps[session]));
+					try {
+						Conversation conversation = conversationManager
+								.getConversation(conversationId);
+						conversation.lock();
+						try {
+							Thread.sleep(workMillis);
+							conversation.putAttribute("attribute",
+									Long.valueOf(System.nanoTime()));
+						} finally {
+							conversation.unlock();
+						}
+					} catch (Exception e) {
+						errors.incrementAndGet();
+					} finally {
+						ExternalContextHolder.setExternalContext(null);
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.HOURS);
+		final long elapsed = System.nanoTime() - start;
+		if (errors.get() > 0) {
+			System.out.println(lockingMode + ": " + errors + " failed requests");
+		}
+		return requests / (elapsed / 1e9);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static MockExternalContext newExternalContext(
+			SharedAttributeMap<?> sessionMap) {
+		MockExternalContext externalContext = new MockExternalContext();
+		externalContext.setSessionMap((SharedAttributeMap<Object>) sessionMap);
+		return externalContext;
+	}
+
+	private static boolean isVirtualThreadsAvailable() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns an executor running each task in a new virtual thread, looked up
+	 * by reflection so this compiles on older JDKs.
+	 */
+	private static ExecutorService newExecutor() throws Exception {
+		if (isVirtualThreadsAvailable()) {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		return Executors.newFixedThreadPool(PLATFORM_THREADS);
+	}
+}
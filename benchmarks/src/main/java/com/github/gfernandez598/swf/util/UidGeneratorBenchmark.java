@@ -0,0 +1,82 @@
+package com.github.gfernandez598.swf.util;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generation and parsing of conversation uids by the available
+ * {@link UidGenerator}s, shared among the benchmark threads as they are in a
+ * conversation manager.
+ * 
+ * @author gfernandez598
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UidGeneratorBenchmark {
+
+	@Param({ "RandomUUID", "Sequence", "Snowflake" })
+	public String generatorType;
+
+	private UidGenerator generator;
+
+	private String encodedUid;
+
+	@Setup
+	public void setUp() {
+		if ("RandomUUID".equals(generatorType)) {
+			generator = new RandomUUIDUidGenerator();
+		} else if ("Sequence".equals(generatorType)) {
+			generator = new SequenceUidGenerator();
+		} else {
+			generator = new SnowflakeUidGenerator();
+		}
+		encodedUid = generator.generateUid().toString();
+	}
+
+	@Benchmark
+	public Serializable generateUid() {
+		return generator.generateUid();
+	}
+
+	@Benchmark
+	public Serializable parseUid() {
+		return generator.parseUid(encodedUid);
+	}
+}
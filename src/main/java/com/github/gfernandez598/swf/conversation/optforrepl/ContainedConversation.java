@@ -27,39 +27,171 @@ import org.springframework.webflow.context.ExternalContextHolder;
 import org.springframework.webflow.conversation.Conversation;
 import org.springframework.webflow.conversation.ConversationId;
 import org.springframework.webflow.conversation.impl.ConversationLock;
-import org.springframework.webflow.core.collection.SharedAttributeMap;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
 import java.io.IOException;
+import java.io.ObjectInput;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * <p>
  * Base on workaround attached to issue SWF-1030.
  * </p>
+ * <p>
+ * It does not reference its container, so replicating a conversation does not
+ * drag the container along: it just carries the session key of the container
+ * and the settings it needs.
+ * </p>
+ * <p>
+ * It is written in a compact, hand made, format (see
+ * {@link #writeExternal(ObjectOutput)}) rather than with the default
+ * serialization, since replication cost scales with its size.
+ * </p>
+ * <p>
+ * With a {@link ConversationStore} other than the session map, its attributes
+ * are paged out to the store when unlocked, and paged back in when next
+ * accessed, so the conversation left in the session is just a small handle.
+ * If the container pages out just the idle conversations, they are kept on the
+ * heap while in use and paged out by {@link #pageOutIdle(SessionMapConversationContainer)}.
+ * If the store is an {@link ExternalConversationStore}, shared by the nodes,
+ * just the key of the stored state is replicated along with the handle.
+ * </p>
+ * <p>
+ * If the container shares big attribute values among its conversations, those
+ * are written as a {@link SharedValueReference} to the copy kept by the
+ * container, and read back as such until first accessed.
+ * </p>
  * 
  * @see <a
  *      href="https://jira.spring.io/browse/SWF-1030">https://jira.spring.io/browse/SWF-1030</a>
  * @author gfernandez598
  * 
  */
-class ContainedConversation implements Conversation, Serializable {
+class ContainedConversation implements Conversation, Externalizable {
 
-	private static final long serialVersionUID = 2004406369147937290L;
+	private static final long serialVersionUID = -3346046281717468013L;
+
+	/**
+	 * Version of the externalized format.
+	 */
+	private static final byte FORMAT_VERSION = 1;
+
+	/**
+	 * Attribute names always present, written as their position in this
+	 * array (plus one) rather than as strings.
+	 */
+	private static final String[] WELL_KNOWN_NAMES = { "name", "caption",
+			"description" };
+
+	/**
+	 * Marks an attribute name that is a string but not a well known one.
+	 */
+	private static final byte STRING_NAME = 0;
+
+	/**
+	 * Marks an attribute name that is not a string.
+	 */
+	private static final byte OBJECT_NAME = -1;
+
+	/**
+	 * Written instead of the number of attributes when they are left in a
+	 * store shared by the nodes, followed by the key they are stored under.
+	 */
+	private static final int SHARED_STATE = -1;
 
 	private static final Log logger = LogFactory
 			.getLog(ContainedConversation.class);
 
-	private SessionMapConversationContainer container;
-
 	private ConversationId id;
 
-	private transient ConversationLock lock;
+	/**
+	 * The key of the container of this conversation in the session.
+	 */
+	private String sessionKey;
+
+	/**
+	 * The lock timeout in seconds.
+	 */
+	private int lockTimeoutSeconds;
 
-	private Map attributes;
+	/**
+	 * The lock, created lazily once read back since the lock factory is known
+	 * by the container.
+	 */
+	private transient volatile ConversationLock lock;
+
+	private static final AtomicReferenceFieldUpdater<ContainedConversation, ConversationLock> LOCK_UPDATER = AtomicReferenceFieldUpdater
+			.newUpdater(ContainedConversation.class, ConversationLock.class,
+					"lock");
+
+	/**
+	 * The attributes, null while paged out to the store.
+	 */
+	private volatile Map<Object, Object> attributes;
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<ContainedConversation, Map> ATTRIBUTES_UPDATER = AtomicReferenceFieldUpdater
+			.newUpdater(ContainedConversation.class, Map.class, "attributes");
+
+	/**
+	 * The store holding an up to date copy of the attributes, null if none.
+	 */
+	private transient volatile ConversationStore store;
+
+	/**
+	 * The key the attributes are stored under. Replicated along with the
+	 * conversation, instead of the attributes, if stored in a store shared by
+	 * the nodes.
+	 */
+	private transient volatile String storeKey;
+
+	/**
+	 * Whether removed from its container, so not to be paged out anymore.
+	 */
+	private transient volatile boolean removed;
+
+	/**
+	 * The hashes of the attribute values shared among the conversations of
+	 * the container, by attribute name, as of the last time the conversation
+	 * was saved. Replaced as a whole.
+	 */
+	private transient volatile Map<Object, String> sharedValues = Collections
+			.emptyMap();
+
+	/**
+	 * The requests holding the lock, or -1 while the conversation is being
+	 * paged out for being idle.
+	 */
+	private transient volatile int holders;
+
+	private static final AtomicIntegerFieldUpdater<ContainedConversation> HOLDERS_UPDATER = AtomicIntegerFieldUpdater
+			.newUpdater(ContainedConversation.class, "holders");
+
+	/**
+	 * Whether the attributes have been written since the conversation was last
+	 * saved to the session. Only accessed while holding the conversation lock
+	 * exclusively.
+	 */
+	private transient boolean dirty;
+
+	/**
+	 * Create an empty conversation, to be read by
+	 * {@link #readExternal(ObjectInput)}. Required by {@link Externalizable},
+	 * not to be used directly.
+	 */
+	public ContainedConversation() {
+	}
 
 	/**
 	 * Create a new contained conversation.
@@ -71,11 +203,11 @@ class ContainedConversation implements Conversation, Serializable {
 	 */
 	public ContainedConversation(SessionMapConversationContainer container,
 			ConversationId id) {
-		this.container = container;
 		this.id = id;
-		this.lock = ConversationLockFactory.createLock(container
-				.getLockTimeoutSeconds());
-		this.attributes = new HashMap();
+		this.sessionKey = container.getSessionKey();
+		this.lockTimeoutSeconds = container.getLockTimeoutSeconds();
+		this.lock = container.createConversationLock(lockTimeoutSeconds);
+		this.attributes = new HashMap<Object, Object>();
 	}
 
 	public ConversationId getId() {
@@ -86,11 +218,64 @@ class ContainedConversation implements Conversation, Serializable {
 		if (logger.isDebugEnabled()) {
 			logger.debug("Locking conversation " + id);
 		}
-		lock.lock();
+		try {
+			getLock().lock();
+		} catch (RuntimeException e) {
+			// no unlock follows to send what the request left to the store
+			final SessionMapConversationContainer container = getContainer();
+			if (container != null) {
+				container.flushState();
+			}
+			throw e;
+		}
+		for (;;) {
+			final int current = holders;
+			if (current >= 0
+					&& HOLDERS_UPDATER.compareAndSet(this, current, current + 1)) {
+				return;
+			}
+			// being paged out for being idle, it just takes a moment
+			Thread.yield();
+		}
 	}
 
 	public Object getAttribute(Object name) {
-		return attributes.get(name);
+		final Map<Object, Object> attributeMap = getAttributeMap();
+		final Object value = attributeMap.get(name);
+		if (value instanceof SharedValueReference) {
+			final Object shared = loadSharedValue((SharedValueReference) value);
+			if (!isLockedShared()) {
+				attributeMap.put(name, shared);
+			}
+			return shared;
+		}
+		return value;
+	}
+
+	/**
+	 * Returns whether the current request holds the lock shared with others,
+	 * so it must leave this conversation as it is.
+	 */
+	boolean isLockedShared() {
+		final ConversationLock current = getLock();
+		return current instanceof SharableConversationLock
+				&& ((SharableConversationLock) current).isHeldShared();
+	}
+
+	/**
+	 * Returns whether the lock is held exclusively, so the attribute values
+	 * read may be changed in place by the request holding it.
+	 */
+	boolean isLockedExclusively() {
+		return holders > 0 && !isLockedShared();
+	}
+
+	/**
+	 * Mark the attributes as written since last saved. Called while holding
+	 * the lock exclusively.
+	 */
+	void markDirty() {
+		dirty = true;
 	}
 
 	public void putAttribute(Object name, Object value) {
@@ -98,42 +283,430 @@ class ContainedConversation implements Conversation, Serializable {
 			logger.debug("Putting conversation attribute '" + name
 					+ "' with value " + value);
 		}
-		attributes.put(name, value);
+		getAttributeMap().put(name, value);
+		dirty = true;
 	}
 
 	public void removeAttribute(Object name) {
 		if (logger.isDebugEnabled()) {
 			logger.debug("Removing conversation attribute '" + name + "'");
 		}
-		attributes.remove(name);
+		final Map<Object, Object> attributeMap = getAttributeMap();
+		if (attributeMap.containsKey(name)) {
+			attributeMap.remove(name);
+			dirty = true;
+		}
 	}
 
 	public void end() {
 		if (logger.isDebugEnabled()) {
 			logger.debug("Ending conversation " + id);
 		}
-		container.removeConversation(getId());
+		final SessionMapConversationContainer container = getContainer();
+		if (container != null) {
+			container.removeConversation(getId());
+		}
 	}
 
 	public void unlock() {
 		if (logger.isDebugEnabled()) {
 			logger.debug("Unlocking conversation " + id);
 		}
+		// find out whether there is anything to save while still holding the
+		// lock, any later write belongs to the next holder of the lock
+		// readers sharing the lock leave it all to the next writer
+		final boolean shared = isLockedShared();
+		final boolean changed = !shared && dirty;
+		final Map<Object, Object> changes = changed ? takeChanges() : null;
+		if (changed) {
+			dirty = false;
+		}
+		final SessionMapConversationContainer container = getContainer();
+		if (changed && container != null
+				&& container.getDeduplicationThreshold() >= 0) {
+			shareValues(container);
+		}
+		if (container != null && container.pagesOut() && !shared) {
+			if (!container.pagesOutIdleOnly()) {
+				pageOut(container, changed);
+			} else if (changed) {
+				// kept on the heap until idle, a stored copy would be stale
+				discardStoredState(container);
+			}
+			// before unlocking, the next holder must find the state stored
+			container.flushState();
+		}
+		HOLDERS_UPDATER.decrementAndGet(this);
 		lock.unlock();
 
-		// re-bind the conversation container in the session
+		// re-bind the index of conversations and the conversation in the
+		// session only if they changed, a read-only request replicates nothing
 		// this is required to make session replication work correctly in
 		// a clustered environment
 		// we do this after releasing the lock since we're no longer
 		// manipulating the contents of the conversation
-		SharedAttributeMap sessionMap = ExternalContextHolder
-				.getExternalContext().getSessionMap();
-		synchronized (sessionMap.getMutex()) {
-			sessionMap.put(container.getSessionKey(), container);
-			container.saveConversation(id);
+		if (container != null) {
+			container.beginSessionWrites();
+			try {
+				container.recordAccess(id);
+				container.saveIndex();
+				if (changed) {
+					container.saveConversation(id, changes);
+				}
+			} finally {
+				container.endSessionWrites();
+			}
+			container.requestCompleted();
+		}
+	}
+
+	/**
+	 * Returns the attributes written (or removed) since this conversation was
+	 * last saved, if they can be saved one by one, clearing them. Called while
+	 * holding the lock.
+	 * 
+	 * @return null, the conversation is saved as a whole
+	 */
+	Map<Object, Object> takeChanges() {
+		return null;
+	}
+
+	/**
+	 * Returns the lock of this conversation, creating it if not created yet.
+	 */
+	private ConversationLock getLock() {
+		final ConversationLock result = lock;
+		if (result != null) {
+			return result;
+		}
+		final SessionMapConversationContainer container = getContainer();
+		final ConversationLock created = container != null ? container
+				.createConversationLock(lockTimeoutSeconds)
+				: ConversationLockFactory.createLock(lockTimeoutSeconds);
+		// just one must win: everyone must get the very same lock
+		if (LOCK_UPDATER.compareAndSet(this, null, created)) {
+			return created;
+		}
+		return lock;
+	}
+
+	/**
+	 * Returns the attributes of this conversation, paging them in if paged
+	 * out. For package level use only.
+	 */
+	Map<Object, Object> getAttributeMap() {
+		Map<Object, Object> result = attributes;
+		while (result == null) {
+			final Map<Object, Object> loaded = loadStoredAttributes();
+			if (ATTRIBUTES_UPDATER.compareAndSet(this, null, loaded)) {
+				sharedValues = findSharedValues(loaded);
+				result = loaded;
+			} else {
+				result = attributes;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns an attribute without paging the attributes in: they are read
+	 * from the store, if paged out, just for this. For package level use
+	 * only.
+	 */
+	Object peekAttribute(Object name) {
+		return getReadableAttributes().get(name);
+	}
+
+	/**
+	 * Page the attributes out to the store of the container, if not already
+	 * there, and let them go. Called while holding the lock.
+	 * 
+	 * @param container
+	 *            the container
+	 * @param changed
+	 *            whether they have been written since last paged in
+	 */
+	private void pageOut(SessionMapConversationContainer container,
+			boolean changed) {
+		final Map<Object, Object> current = attributes;
+		if (current == null || removed) {
+			return;
+		}
+		final ConversationStore target = container.getConversationStore();
+		if (changed || store != target) {
+			final String key = container.getStoreKey(id);
+			if (!storeAttributes(container, target, key, current)) {
+				// kept on the heap, a stored copy would be stale
+				discardStoredState(container);
+				return;
+			}
+			final ConversationStore previous = store;
+			final String previousKey = storeKey;
+			store = target;
+			storeKey = key;
+			container.stateStored(key);
+			if (previous != null
+					&& (previous != target || !previousKey.equals(key))) {
+				container.removeState(previous, previousKey);
+			}
+		}
+		attributes = null;
+	}
+
+	/**
+	 * Page the attributes out to the store of the container, unless held by a
+	 * request (or already paged out). Called, with no lock held, once the
+	 * conversation has been idle for a while. For package level use only.
+	 * 
+	 * @param container
+	 *            the container
+	 * @return whether paged out by this call
+	 */
+	boolean pageOutIdle(SessionMapConversationContainer container) {
+		if (attributes == null || !claimIdle()) {
+			return false;
+		}
+		try {
+			// nobody holds the lock, so nothing is written meanwhile
+			pageOut(container, false);
+			return attributes == null;
+		} finally {
+			releaseIdle();
+		}
+	}
+
+	/**
+	 * Keep requests from locking this conversation until
+	 * {@link #releaseIdle()}, unless one already holds the lock: a lock that
+	 * is not waited for, to act on an idle conversation. For package level
+	 * use only.
+	 * 
+	 * @return whether claimed, false if held by a request
+	 */
+	boolean claimIdle() {
+		return HOLDERS_UPDATER.compareAndSet(this, 0, -1);
+	}
+
+	/**
+	 * Let requests lock this conversation again. For package level use only.
+	 */
+	void releaseIdle() {
+		holders = 0;
+	}
+
+	/**
+	 * This conversation has been removed from its container: remove the copy
+	 * of its attributes kept in the store, if any, and do not page them out
+	 * anymore. For package level use only.
+	 * 
+	 * @param container
+	 *            the container
+	 */
+	void removed(SessionMapConversationContainer container) {
+		removed = true;
+		if (attributes == null && container.getDeduplicationThreshold() >= 0) {
+			// paged out before being read back on this node, the shared values
+			// are known only to the stored state
+			getAttributeMap();
+		}
+		discardStoredState(container);
+		final Map<Object, String> released = sharedValues;
+		sharedValues = Collections.emptyMap();
+		for (String hash : released.values()) {
+			container.releaseValue(hash);
+		}
+	}
+
+	/**
+	 * Share with the other conversations of the container the attribute
+	 * values big enough, identified by the hash of their serialized form, and
+	 * stop sharing those no longer held. Called while holding the lock.
+	 * 
+	 * @param container
+	 *            the container
+	 */
+	private void shareValues(SessionMapConversationContainer container) {
+		final Map<Object, String> previous = sharedValues;
+		final Map<Object, String> shared = new HashMap<Object, String>();
+		for (Map.Entry<Object, Object> entry : getAttributeMap().entrySet()) {
+			final Object value = entry.getValue();
+			if (value instanceof SharedValueReference) {
+				// not even read since read back
+				shared.put(entry.getKey(),
+						((SharedValueReference) value).getHash());
+				continue;
+			}
+			// values may have been changed in place, so always hashed again
+			final byte[] serialized = serializeValue(value);
+			if (serialized == null
+					|| serialized.length < container
+							.getDeduplicationThreshold()) {
+				continue;
+			}
+			final String hash = hash(serialized);
+			shared.put(entry.getKey(), hash);
+			if (!hash.equals(previous.get(entry.getKey()))) {
+				container.shareValue(hash, serialized);
+			}
+		}
+		sharedValues = shared.isEmpty() ? Collections
+				.<Object, String> emptyMap() : shared;
+		for (Map.Entry<Object, String> entry : previous.entrySet()) {
+			if (!entry.getValue().equals(shared.get(entry.getKey()))) {
+				container.releaseValue(entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Returns an attribute value shared among the conversations, read from the
+	 * copy kept by the container.
+	 */
+	private Object loadSharedValue(SharedValueReference reference) {
+		final SessionMapConversationContainer container = getContainer();
+		final byte[] serialized = container != null ? container
+				.getSharedValue(reference.getHash()) : null;
+		if (serialized == null) {
+			throw new IllegalStateException("The shared value "
+					+ reference.getHash() + " of conversation " + id
+					+ " is no longer in the session");
+		}
+		try {
+			return new ObjectInputStream(new ByteArrayInputStream(serialized))
+					.readObject();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read shared value "
+					+ reference.getHash(), e);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Could not read shared value "
+					+ reference.getHash(), e);
+		}
+	}
+
+	/**
+	 * Returns the serialized form of an attribute value, null if it cannot be
+	 * serialized.
+	 */
+	private byte[] serializeValue(Object value) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			final ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(value);
+			out.close();
+		} catch (IOException e) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Could not serialize an attribute of conversation "
+						+ id + ", not shared", e);
+			}
+			return null;
+		}
+		return bytes.toByteArray();
+	}
+
+	private static String hash(byte[] serialized) {
+		final byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(serialized);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		final StringBuilder hex = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(
+					Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Remove the copy of the attributes kept in the store, if any.
+	 */
+	private void discardStoredState(SessionMapConversationContainer container) {
+		ConversationStore current = store;
+		final String key = storeKey;
+		if (current == null && key != null) {
+			// replicated from another node and not paged in yet, left in the
+			// shared store
+			current = container.getConversationStore();
+		}
+		if (current != null && key != null) {
+			store = null;
+			storeKey = null;
+			container.removeState(current, key);
+		}
+	}
+
+	/**
+	 * Returns whether the attributes are paged out, for testing.
+	 */
+	boolean isPagedOut() {
+		return attributes == null;
+	}
+
+	private boolean storeAttributes(SessionMapConversationContainer container,
+			ConversationStore target, String key,
+			Map<Object, Object> attributeMap) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			final ObjectOutputStream out = new ObjectOutputStream(bytes);
+			writeAttributeMap(attributeMap, out);
+			out.close();
+		} catch (IOException e) {
+			logger.warn("Could not page out conversation " + id
+					+ ", keeping it on the heap", e);
+			return false;
+		}
+		return container.storeState(target, key, bytes.toByteArray());
+	}
+
+	/**
+	 * Returns the attributes, read from the store if paged out.
+	 */
+	private Map<Object, Object> getReadableAttributes() {
+		final Map<Object, Object> current = attributes;
+		return current != null ? current : loadStoredAttributes();
+	}
+
+	private Map<Object, Object> loadStoredAttributes() {
+		ConversationStore current = store;
+		if (current == null && storeKey != null) {
+			// replicated from another node, left in the shared store
+			final SessionMapConversationContainer container = getContainer();
+			if (container != null) {
+				current = container.getConversationStore();
+				store = current;
+				container.stateStored(storeKey);
+			}
+		}
+		final byte[] state = current != null ? current.load(storeKey) : null;
+		if (state == null) {
+			logger.warn("The state of conversation " + id
+					+ " is no longer stored, it is left empty");
+			return new HashMap<Object, Object>();
+		}
+		try {
+			final ObjectInputStream in = new ObjectInputStream(
+					new ByteArrayInputStream(state));
+			return readAttributeMap(in);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not page in conversation "
+					+ id, e);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Could not page in conversation "
+					+ id, e);
 		}
 	}
 
+	/**
+	 * Returns the container of this conversation, looked up in the session.
+	 * 
+	 * @return the container or null if no longer in the session
+	 */
+	SessionMapConversationContainer getContainer() {
+		return (SessionMapConversationContainer) ExternalContextHolder
+				.getExternalContext().getSessionMap().get(sessionKey);
+	}
+
 	public String toString() {
 		return getId().toString();
 	}
@@ -156,28 +729,174 @@ class ContainedConversation implements Conversation, Serializable {
 	}
 
 	/**
-	 * Serialization to handle the transient object(s)
+	 * Write this conversation as: format version, id in its compact form,
+	 * session key, lock timeout, number of attributes and then each name and
+	 * value. Well known names are written as a single byte.
 	 * 
 	 * @param out
-	 *            the output stream
+	 *            the output
 	 * @throws IOException
 	 */
-	private void writeObject(ObjectOutputStream out) throws IOException {
-		out.defaultWriteObject();
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(FORMAT_VERSION);
+		UidConversationId.write(id, out);
+		out.writeUTF(sessionKey);
+		out.writeInt(lockTimeoutSeconds);
+		writeAttributes(out);
 	}
 
 	/**
-	 * Read the input stream
+	 * Read a conversation written by {@link #writeExternal(ObjectOutput)}.
 	 * 
 	 * @param in
-	 *            the input stream
+	 *            the input
 	 * @throws IOException
 	 * @throws ClassNotFoundException
 	 */
-	private void readObject(ObjectInputStream in) throws IOException,
+	public void readExternal(ObjectInput in) throws IOException,
 			ClassNotFoundException {
-		in.defaultReadObject();
-		lock = ConversationLockFactory.createLock(container
-				.getLockTimeoutSeconds());
+		final byte version = in.readByte();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unsupported conversation format version "
+					+ version);
+		}
+		id = UidConversationId.read(in);
+		sessionKey = in.readUTF();
+		lockTimeoutSeconds = in.readInt();
+		attributes = readAttributes(in);
+		if (attributes != null) {
+			sharedValues = findSharedValues(attributes);
+		}
+	}
+
+	/**
+	 * Write the number of attributes and then each name and value.
+	 * 
+	 * @param out
+	 *            the output
+	 * @throws IOException
+	 */
+	void writeAttributes(ObjectOutput out) throws IOException {
+		final ConversationStore current = store;
+		final String key = storeKey;
+		if (attributes == null && key != null
+				&& (current == null || current instanceof ExternalConversationStore)) {
+			// the other nodes read them from the store
+			out.writeInt(SHARED_STATE);
+			out.writeUTF(key);
+			return;
+		}
+		writeAttributeMap(getReadableAttributes(), out);
+	}
+
+	/**
+	 * Write the number of attributes and then each name and value, the shared
+	 * values as references unless written to be read in another session.
+	 */
+	private void writeAttributeMap(Map<Object, Object> attributes,
+			ObjectOutput out) throws IOException {
+		final Map<Object, String> shared = sharedValues;
+		final boolean selfContained = out instanceof ConversationTransfer.SelfContainedOutputStream;
+		out.writeInt(attributes.size());
+		for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+			writeAttributeName(entry.getKey(), out);
+			Object value = entry.getValue();
+			if (selfContained) {
+				if (value instanceof SharedValueReference) {
+					value = loadSharedValue((SharedValueReference) value);
+				}
+			} else {
+				final String hash = shared.get(entry.getKey());
+				if (hash != null) {
+					value = new SharedValueReference(hash);
+				}
+			}
+			out.writeObject(value);
+		}
+	}
+
+	/**
+	 * Read the attributes written by {@link #writeAttributes(ObjectOutput)}.
+	 * 
+	 * @param in
+	 *            the input
+	 * @return the attributes
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	Map<Object, Object> readAttributes(ObjectInput in) throws IOException,
+			ClassNotFoundException {
+		final int size = in.readInt();
+		if (size == SHARED_STATE) {
+			storeKey = in.readUTF();
+			return null;
+		}
+		return readAttributeMap(size, in);
+	}
+
+	/**
+	 * Returns the hashes of the shared values read back, by attribute name.
+	 */
+	private static Map<Object, String> findSharedValues(
+			Map<Object, Object> attributes) {
+		Map<Object, String> shared = Collections.emptyMap();
+		for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+			if (entry.getValue() instanceof SharedValueReference) {
+				if (shared.isEmpty()) {
+					shared = new HashMap<Object, String>();
+				}
+				shared.put(entry.getKey(),
+						((SharedValueReference) entry.getValue()).getHash());
+			}
+		}
+		return shared;
+	}
+
+	private static Map<Object, Object> readAttributeMap(ObjectInput in)
+			throws IOException, ClassNotFoundException {
+		return readAttributeMap(in.readInt(), in);
+	}
+
+	private static Map<Object, Object> readAttributeMap(int size,
+			ObjectInput in) throws IOException, ClassNotFoundException {
+		final Map<Object, Object> result = new HashMap<Object, Object>(
+				size * 4 / 3 + 1);
+		for (int i = 0; i < size; i++) {
+			final Object name = readAttributeName(in);
+			result.put(name, in.readObject());
+		}
+		return result;
+	}
+
+	static void writeAttributeName(Object name, ObjectOutput out)
+			throws IOException {
+		for (int i = 0; i < WELL_KNOWN_NAMES.length; i++) {
+			if (WELL_KNOWN_NAMES[i].equals(name)) {
+				out.writeByte(i + 1);
+				return;
+			}
+		}
+		if (name instanceof String) {
+			out.writeByte(STRING_NAME);
+			out.writeUTF((String) name);
+		} else {
+			out.writeByte(OBJECT_NAME);
+			out.writeObject(name);
+		}
+	}
+
+	static Object readAttributeName(ObjectInput in)
+			throws IOException, ClassNotFoundException {
+		final byte code = in.readByte();
+		if (code == STRING_NAME) {
+			return in.readUTF();
+		}
+		if (code == OBJECT_NAME) {
+			return in.readObject();
+		}
+		if (code < 1 || code > WELL_KNOWN_NAMES.length) {
+			throw new IOException("Unknown attribute name code " + code);
+		}
+		return WELL_KNOWN_NAMES[code - 1];
 	}
 }
@@ -0,0 +1,55 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * <p>
+ * How the conversation container of a session guards the access to its
+ * conversations.
+ * </p>
+ * 
+ * @see ReplicationOptimizedSessionBindingConversationManager#setContainerLockingMode(ContainerLockingMode)
+ * @author gfernandez598
+ * 
+ */
+public enum ContainerLockingMode {
+
+	/**
+	 * The whole container is locked for every operation, so concurrent
+	 * requests of the same session queue up behind each other even when they
+	 * work on different conversations. This is the default.
+	 */
+	CONTAINER,
+
+	/**
+	 * Only the conversation being touched is locked (using striped locks), and
+	 * the session mutex is held just for the actual attribute put/remove.
+	 * Independent conversations of the same session proceed in parallel.
+	 */
+	CONVERSATION,
+
+	/**
+	 * Like {@link #CONVERSATION}, but never blocking on a monitor: the session
+	 * mutex is replaced by a lock of the container, so requests handled by
+	 * virtual threads do not pin their carrier threads while waiting.
+	 */
+	VIRTUAL_THREADS
+}
@@ -0,0 +1,50 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.springframework.webflow.conversation.ConversationLockException;
+
+/**
+ * <p>
+ * Thrown when a conversation is locked by another request and could not be
+ * acquired within a short wait (see {@link FailFastConversationLockFactory}).
+ * Usually mapped to an HTTP 409 (Conflict) response, for the client to retry
+ * later.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class ConversationBusyException extends ConversationLockException {
+
+	private static final long serialVersionUID = 5190423710834726357L;
+
+	/**
+	 * Create a new conversation busy exception.
+	 * 
+	 * @param waitMillis
+	 *            the time waited for the lock, in milliseconds
+	 */
+	public ConversationBusyException(long waitMillis) {
+		super("Conversation busy: unable to acquire its lock after "
+				+ waitMillis + " milliseconds");
+	}
+}
@@ -0,0 +1,292 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.binding.collection.SharedMap;
+import org.springframework.binding.collection.StringKeyedMapAdapter;
+import org.springframework.web.util.WebUtils;
+import org.springframework.webflow.context.ExternalContext;
+import org.springframework.webflow.context.ExternalContextHolder;
+import org.springframework.webflow.core.collection.LocalAttributeMap;
+import org.springframework.webflow.core.collection.LocalSharedAttributeMap;
+import org.springframework.webflow.core.collection.MutableAttributeMap;
+import org.springframework.webflow.core.collection.SharedAttributeMap;
+
+/**
+ * <p>
+ * Ends, in the background, the conversations idle for longer than allowed
+ * (see
+ * {@link ReplicationOptimizedSessionBindingConversationManager#setMaxIdleSeconds(int)}
+ * ), so sessions not receiving requests get rid of them too. It also pages
+ * out the conversations idle for longer than set by
+ * {@link ReplicationOptimizedSessionBindingConversationManager#setPageOutIdleSeconds(int)}
+ * .
+ * </p>
+ * <p>
+ * Register it as a listener in the web.xml. It keeps track of the sessions of
+ * the node holding conversations, those a conversation container is bound to
+ * and those activated (i.e. migrated from another node) holding one, told by
+ * the container itself, and sweeps them every
+ * {@value #DEFAULT_SWEEP_INTERVAL_SECONDS}
+ * seconds, or as set by the {@value #SWEEP_INTERVAL_PARAMETER} context
+ * parameter.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class ConversationExpirySweeper implements ServletContextListener,
+		HttpSessionListener, HttpSessionAttributeListener {
+
+	/**
+	 * The context parameter setting the seconds between sweeps.
+	 */
+	public static final String SWEEP_INTERVAL_PARAMETER = "conversationSweepIntervalSeconds";
+
+	/**
+	 * The default seconds between sweeps.
+	 */
+	public static final int DEFAULT_SWEEP_INTERVAL_SECONDS = 60;
+
+	private static final String SWEEPER_KEY = ConversationExpirySweeper.class
+			.getName();
+
+	private static final Log logger = LogFactory
+			.getLog(ConversationExpirySweeper.class);
+
+	/**
+	 * The sessions of this node, by id.
+	 */
+	private final ConcurrentMap<String, HttpSession> sessions = new ConcurrentHashMap<String, HttpSession>();
+
+	private ScheduledExecutorService executor;
+
+	public void contextInitialized(ServletContextEvent event) {
+		final ServletContext servletContext = event.getServletContext();
+		final String parameter = servletContext
+				.getInitParameter(SWEEP_INTERVAL_PARAMETER);
+		final int interval = parameter != null ? Integer.parseInt(parameter
+				.trim()) : DEFAULT_SWEEP_INTERVAL_SECONDS;
+		servletContext.setAttribute(SWEEPER_KEY, this);
+
+		executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						final Thread thread = new Thread(runnable,
+								"conversation-expiry-sweeper");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sweep();
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	public void contextDestroyed(ServletContextEvent event) {
+		event.getServletContext().removeAttribute(SWEEPER_KEY);
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		sessions.clear();
+	}
+
+	public void sessionCreated(HttpSessionEvent event) {
+	}
+
+	public void sessionDestroyed(HttpSessionEvent event) {
+		sessions.remove(event.getSession().getId());
+	}
+
+	public void attributeAdded(HttpSessionBindingEvent event) {
+		if (event.getValue() instanceof SessionMapConversationContainer) {
+			sessions.put(event.getSession().getId(), event.getSession());
+		}
+	}
+
+	public void attributeReplaced(HttpSessionBindingEvent event) {
+		attributeAdded(event);
+	}
+
+	public void attributeRemoved(HttpSessionBindingEvent event) {
+		// swept until destroyed, finding no container to sweep
+	}
+
+	/**
+	 * A session holding a conversation container has been activated in this
+	 * node. For package level use only.
+	 */
+	static void sessionDidActivate(HttpSession session) {
+		final ConversationExpirySweeper sweeper = getSweeper(session);
+		if (sweeper != null) {
+			sweeper.sessions.put(session.getId(), session);
+		}
+	}
+
+	/**
+	 * A session holding a conversation container is about to be passivated
+	 * in this node. For package level use only.
+	 */
+	static void sessionWillPassivate(HttpSession session) {
+		final ConversationExpirySweeper sweeper = getSweeper(session);
+		if (sweeper != null) {
+			sweeper.sessions.remove(session.getId());
+		}
+	}
+
+	private static ConversationExpirySweeper getSweeper(HttpSession session) {
+		return (ConversationExpirySweeper) session.getServletContext()
+				.getAttribute(SWEEPER_KEY);
+	}
+
+	/**
+	 * End the idle conversations of every known session.
+	 */
+	public void sweep() {
+		for (Iterator<HttpSession> it = sessions.values().iterator(); it
+				.hasNext();) {
+			final HttpSession session = it.next();
+			try {
+				sweep(session);
+			} catch (IllegalStateException e) {
+				// invalidated
+				it.remove();
+			} catch (RuntimeException e) {
+				// keep sweeping the rest, and on the next run
+				logger.warn("Could not sweep the conversations of session "
+						+ session.getId(), e);
+			}
+		}
+	}
+
+	private void sweep(HttpSession session) {
+		final List<SessionMapConversationContainer> containers = new ArrayList<SessionMapConversationContainer>();
+		for (Enumeration<String> names = session.getAttributeNames(); names
+				.hasMoreElements();) {
+			final Object value = session.getAttribute(names.nextElement());
+			if (value instanceof SessionMapConversationContainer) {
+				containers.add((SessionMapConversationContainer) value);
+			}
+		}
+		if (containers.isEmpty()) {
+			return;
+		}
+		ExternalContextHolder.setExternalContext(createExternalContext(session));
+		try {
+			for (SessionMapConversationContainer container : containers) {
+				container.purgeIdle();
+				container.pageOutIdle();
+				// no request unlocks a conversation to send them to the store
+				container.flushState();
+			}
+		} finally {
+			ExternalContextHolder.setExternalContext(null);
+		}
+	}
+
+	/**
+	 * Returns an external context giving access just to the given session,
+	 * all the containers need, and to a request map of its own.
+	 */
+	private static ExternalContext createExternalContext(HttpSession session) {
+		final SharedAttributeMap<Object> sessionMap = new LocalSharedAttributeMap<Object>(
+				new HttpSessionSharedMap(session));
+		final MutableAttributeMap<Object> requestMap = new LocalAttributeMap<Object>();
+		return (ExternalContext) Proxy.newProxyInstance(
+				ExternalContext.class.getClassLoader(),
+				new Class<?>[] { ExternalContext.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if ("getSessionMap".equals(method.getName())) {
+							return sessionMap;
+						}
+						if ("getRequestMap".equals(method.getName())) {
+							return requestMap;
+						}
+						throw new UnsupportedOperationException(method
+								.getName()
+								+ " is not available while sweeping conversations");
+					}
+				});
+	}
+
+	/**
+	 * A shared map over the attributes of a session, without a request.
+	 */
+	private static class HttpSessionSharedMap extends
+			StringKeyedMapAdapter<Object> implements SharedMap<String, Object> {
+
+		private final HttpSession session;
+
+		HttpSessionSharedMap(HttpSession session) {
+			this.session = session;
+		}
+
+		protected Object getAttribute(String key) {
+			return session.getAttribute(key);
+		}
+
+		protected void setAttribute(String key, Object value) {
+			session.setAttribute(key, value);
+		}
+
+		protected void removeAttribute(String key) {
+			session.removeAttribute(key);
+		}
+
+		protected Iterator<String> getAttributeNames() {
+			return Collections.list(session.getAttributeNames()).iterator();
+		}
+
+		public Object getMutex() {
+			return WebUtils.getSessionMutex(session);
+		}
+	}
+}
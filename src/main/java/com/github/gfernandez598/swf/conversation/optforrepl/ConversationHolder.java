@@ -0,0 +1,215 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <p>
+ * Holds a conversation in its slot of the session, to be written as a byte
+ * array which is compressed when bigger than a given threshold, if any.
+ * </p>
+ * <p>
+ * Once read back (i.e. in other node of the cluster, or when the session is
+ * activated) it just keeps the bytes: the conversation is inflated lazily,
+ * when first accessed. So session stores holding replicas only keep the
+ * (compressed) bytes, and restoring a session only reads the conversations
+ * used afterwards.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+class ConversationHolder implements Serializable {
+
+	private static final long serialVersionUID = -2176403373656213622L;
+
+	/**
+	 * Size, in bytes, above which the serialized conversation is compressed.
+	 */
+	private int compressionThreshold;
+
+	/**
+	 * The held conversation or, when read back and until inflated, the
+	 * {@link SerializedConversation}.
+	 */
+	private transient volatile Object content;
+
+	private static final AtomicReferenceFieldUpdater<ConversationHolder, Object> CONTENT_UPDATER = AtomicReferenceFieldUpdater
+			.newUpdater(ConversationHolder.class, Object.class, "content");
+
+	/**
+	 * Create a new holder.
+	 * 
+	 * @param conversation
+	 *            the conversation to hold
+	 * @param compressionThreshold
+	 *            size, in bytes, above which the serialized conversation is
+	 *            compressed, -1 to never compress it
+	 */
+	public ConversationHolder(ContainedConversation conversation,
+			int compressionThreshold) {
+		this.content = conversation;
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Returns the held conversation, inflating it if this is the first access
+	 * since read back.
+	 */
+	public ContainedConversation getConversation() {
+		final Object current = content;
+		if (current instanceof ContainedConversation) {
+			return (ContainedConversation) current;
+		}
+		final ContainedConversation inflated = inflate((SerializedConversation) current);
+		// just one must win: everyone must get the very same conversation (and
+		// lock)
+		if (CONTENT_UPDATER.compareAndSet(this, current, inflated)) {
+			return inflated;
+		}
+		return (ContainedConversation) content;
+	}
+
+	/**
+	 * Returns whether the conversation is held inflated, rather than as read
+	 * back.
+	 */
+	public boolean isInflated() {
+		return content instanceof ContainedConversation;
+	}
+
+	private static ContainedConversation inflate(
+			SerializedConversation serialized) {
+		try {
+			ObjectInputStream in = new ObjectInputStream(
+					serialized.compressed ? new InflaterInputStream(
+							new ByteArrayInputStream(serialized.data))
+							: new ByteArrayInputStream(serialized.data));
+			try {
+				return (ContainedConversation) in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to inflate conversation",
+					e);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Unable to inflate conversation",
+					e);
+		}
+	}
+
+	/**
+	 * Serialization of the conversation as a byte array, compressed if above
+	 * the threshold
+	 * 
+	 * @param out
+	 *            the output stream
+	 * @throws IOException
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		byte[] bytes;
+		boolean deflated;
+		final Object current = content;
+		if (current instanceof SerializedConversation) {
+			// never inflated, write it as read
+			bytes = ((SerializedConversation) current).data;
+			deflated = ((SerializedConversation) current).compressed;
+		} else {
+			bytes = serialize((ContainedConversation) current);
+			deflated = compressionThreshold >= 0
+					&& bytes.length > compressionThreshold;
+			if (deflated) {
+				bytes = deflate(bytes);
+			}
+		}
+		out.writeBoolean(deflated);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read the input stream
+	 * 
+	 * @param in
+	 *            the input stream
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		final boolean compressed = in.readBoolean();
+		final byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		content = new SerializedConversation(data, compressed);
+	}
+
+	private static byte[] serialize(ContainedConversation conversation)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(conversation);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] deflate(byte[] bytes) throws IOException {
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream(
+				bytes.length / 4);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			DeflaterOutputStream out = new DeflaterOutputStream(deflated,
+					deflater);
+			out.write(bytes);
+			out.close();
+		} finally {
+			deflater.end();
+		}
+		return deflated.toByteArray();
+	}
+
+	/**
+	 * A conversation as read back, not inflated yet.
+	 */
+	private static class SerializedConversation {
+
+		final byte[] data;
+
+		final boolean compressed;
+
+		SerializedConversation(byte[] data, boolean compressed) {
+			this.data = data;
+			this.compressed = compressed;
+		}
+	}
+}
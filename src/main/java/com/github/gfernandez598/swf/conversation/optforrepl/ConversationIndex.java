@@ -0,0 +1,597 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.webflow.conversation.ConversationId;
+
+/**
+ * <p>
+ * The ids of the conversations of a session, in eviction order according to
+ * an {@link EvictionPolicy}. It is kept in its own slot of the session, apart
+ * from the conversations and from the container settings, so it only gets
+ * replicated when a conversation is created or ended.
+ * </p>
+ * <p>
+ * Every operation takes constant time. Accesses do not mark the index as
+ * changed: the order replicated is the one as of the last creation or end of
+ * a conversation.
+ * </p>
+ * <p>
+ * It also tracks when each conversation was last accessed, to find the idle
+ * ones. These times are not replicated: after a failover or a restart the
+ * conversations are taken as accessed when the index is read.
+ * </p>
+ * <p>
+ * And it counts the references of the conversations to the attribute values
+ * shared among them (see
+ * {@link SessionMapConversationContainer#shareValue(String, byte[])}).
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+class ConversationIndex implements Serializable {
+
+	private static final long serialVersionUID = -5630520453311526212L;
+
+	/**
+	 * Which conversation is evicted first.
+	 */
+	private EvictionPolicy evictionPolicy;
+
+	/**
+	 * The ids of the conversations, in eviction order. Serialized by hand just
+	 * as a count followed by the ids in their compact form.
+	 */
+	private transient EvictionQueue conversationIds;
+
+	/**
+	 * The number of references to each shared attribute value, by hash.
+	 */
+	private HashMap<String, Integer> sharedValueRefs = new HashMap<String, Integer>();
+
+	/**
+	 * The time of the last access to each conversation, least recently
+	 * accessed first.
+	 */
+	private transient LinkedHashMap<ConversationId, Long> lastAccesses;
+
+	/**
+	 * Whether this index has changed since it was last saved to the session.
+	 * Only written while holding the lock, so no change is missed by a
+	 * concurrent save.
+	 */
+	private transient volatile boolean dirty;
+
+	/**
+	 * Guards the ids. A lock rather than a monitor, not to pin virtual
+	 * threads.
+	 */
+	private transient Lock lock = new ReentrantLock();
+
+	public ConversationIndex() {
+		this(EvictionPolicy.FIFO);
+	}
+
+	public ConversationIndex(EvictionPolicy evictionPolicy) {
+		this.evictionPolicy = evictionPolicy;
+		this.conversationIds = createQueue(evictionPolicy);
+		this.lastAccesses = new LinkedHashMap<ConversationId, Long>(16,
+				0.75f, true);
+	}
+
+	/**
+	 * Returns which conversation is evicted first.
+	 */
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * Returns the number of indexed conversations.
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return conversationIds.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the ids of the indexed conversations, in eviction order.
+	 */
+	public List<ConversationId> getIds() {
+		lock.lock();
+		try {
+			return new ArrayList<ConversationId>(conversationIds.ids());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns whether a conversation is indexed.
+	 */
+	public boolean contains(ConversationId id) {
+		lock.lock();
+		try {
+			return lastAccesses.containsKey(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Add the id of a new conversation.
+	 */
+	public void add(ConversationId id) {
+		lock.lock();
+		try {
+			conversationIds.add(id);
+			lastAccesses.put(id, System.currentTimeMillis());
+			dirty = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record an access to a conversation, if indexed.
+	 */
+	public void access(ConversationId id) {
+		lock.lock();
+		try {
+			if (lastAccesses.containsKey(id)) {
+				conversationIds.access(id);
+				lastAccesses.put(id, System.currentTimeMillis());
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove the id of an ended conversation.
+	 * 
+	 * @return whether the id was indexed
+	 */
+	public boolean remove(ConversationId id) {
+		lock.lock();
+		try {
+			if (conversationIds.remove(id)) {
+				lastAccesses.remove(id);
+				dirty = true;
+				return true;
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove the id of the conversation to evict first.
+	 * 
+	 * @param spared
+	 *            the id of a conversation not to evict, may be null
+	 * @return the id, or null if there are no other conversations
+	 */
+	public ConversationId poll(ConversationId spared) {
+		lock.lock();
+		try {
+			final ConversationId id = conversationIds.poll(spared);
+			if (id != null) {
+				lastAccesses.remove(id);
+				dirty = true;
+			}
+			return id;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Add a reference to a shared attribute value.
+	 * 
+	 * @param hash
+	 *            the hash of the value
+	 * @return whether it is the first one, so the value must be shared
+	 */
+	public boolean acquireSharedValue(String hash) {
+		lock.lock();
+		try {
+			final Integer refs = sharedValueRefs.get(hash);
+			sharedValueRefs.put(hash, refs == null ? 1 : refs.intValue() + 1);
+			dirty = true;
+			return refs == null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove a reference to a shared attribute value.
+	 * 
+	 * @param hash
+	 *            the hash of the value
+	 * @return whether it was the last one, so the value is no longer shared
+	 */
+	public boolean releaseSharedValue(String hash) {
+		lock.lock();
+		try {
+			final Integer refs = sharedValueRefs.get(hash);
+			if (refs == null) {
+				return false;
+			}
+			dirty = true;
+			if (refs.intValue() <= 1) {
+				sharedValueRefs.remove(hash);
+				return true;
+			}
+			sharedValueRefs.put(hash, refs.intValue() - 1);
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of shared attribute values.
+	 */
+	public int getSharedValueCount() {
+		lock.lock();
+		try {
+			return sharedValueRefs.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the ids of the conversations not accessed since the given time,
+	 * leaving them in the index.
+	 * 
+	 * @param idleSince
+	 *            the time, in milliseconds
+	 * @return the ids, least recently accessed first, possibly empty
+	 */
+	public List<ConversationId> getIdle(long idleSince) {
+		lock.lock();
+		try {
+			List<ConversationId> ids = Collections.emptyList();
+			for (Map.Entry<ConversationId, Long> lastAccess : lastAccesses
+					.entrySet()) {
+				if (lastAccess.getValue().longValue() >= idleSince) {
+					// the rest were accessed later
+					break;
+				}
+				if (ids.isEmpty()) {
+					ids = new ArrayList<ConversationId>();
+				}
+				ids.add(lastAccess.getKey());
+			}
+			return ids;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns whether this index has changed since it was last saved, clearing
+	 * the flag.
+	 */
+	public boolean clearDirty() {
+		// read without locking first, most requests change nothing
+		if (!dirty) {
+			return false;
+		}
+		lock.lock();
+		try {
+			if (!dirty) {
+				// cleared by a concurrent save
+				return false;
+			}
+			dirty = false;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static EvictionQueue createQueue(EvictionPolicy evictionPolicy) {
+		switch (evictionPolicy) {
+		case LRU:
+			return new LinkedEvictionQueue(true);
+		case LFU:
+			return new LfuEvictionQueue();
+		default:
+			return new LinkedEvictionQueue(false);
+		}
+	}
+
+	/**
+	 * Serialization of the ids
+	 * 
+	 * @param out
+	 *            the output stream
+	 * @throws IOException
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		lock.lock();
+		try {
+			out.defaultWriteObject();
+			conversationIds.write(out);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Read the input stream
+	 * 
+	 * @param in
+	 *            the input stream
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		lock = new ReentrantLock();
+		if (sharedValueRefs == null) {
+			sharedValueRefs = new HashMap<String, Integer>();
+		}
+		conversationIds = createQueue(evictionPolicy);
+		conversationIds.read(in);
+		lastAccesses = new LinkedHashMap<ConversationId, Long>(16, 0.75f, true);
+		final Long now = System.currentTimeMillis();
+		for (ConversationId id : conversationIds.ids()) {
+			lastAccesses.put(id, now);
+		}
+	}
+
+	/**
+	 * The ids of the conversations in eviction order. Not thread safe.
+	 */
+	private abstract static class EvictionQueue {
+
+		abstract int size();
+
+		abstract void add(ConversationId id);
+
+		abstract void access(ConversationId id);
+
+		abstract boolean remove(ConversationId id);
+
+		abstract ConversationId poll(ConversationId spared);
+
+		abstract Collection<ConversationId> ids();
+
+		abstract void write(ObjectOutputStream out) throws IOException;
+
+		abstract void read(ObjectInputStream in) throws IOException,
+				ClassNotFoundException;
+	}
+
+	/**
+	 * Ids in creation (FIFO) or access (LRU) order, in a linked hash map.
+	 */
+	private static class LinkedEvictionQueue extends EvictionQueue {
+
+		private final LinkedHashMap<ConversationId, Boolean> ids;
+
+		LinkedEvictionQueue(boolean accessOrder) {
+			ids = new LinkedHashMap<ConversationId, Boolean>(16, 0.75f,
+					accessOrder);
+		}
+
+		int size() {
+			return ids.size();
+		}
+
+		void add(ConversationId id) {
+			ids.put(id, Boolean.TRUE);
+		}
+
+		void access(ConversationId id) {
+			// moves it to the tail, if access ordered
+			ids.get(id);
+		}
+
+		boolean remove(ConversationId id) {
+			return ids.remove(id) != null;
+		}
+
+		ConversationId poll(ConversationId spared) {
+			for (Iterator<ConversationId> it = ids.keySet().iterator(); it
+					.hasNext();) {
+				final ConversationId id = it.next();
+				if (!id.equals(spared)) {
+					it.remove();
+					return id;
+				}
+			}
+			return null;
+		}
+
+		Collection<ConversationId> ids() {
+			return ids.keySet();
+		}
+
+		void write(ObjectOutputStream out) throws IOException {
+			out.writeInt(ids.size());
+			for (ConversationId id : ids.keySet()) {
+				UidConversationId.write(id, out);
+			}
+		}
+
+		void read(ObjectInputStream in) throws IOException,
+				ClassNotFoundException {
+			for (int i = in.readInt(); i > 0; i--) {
+				ids.put(UidConversationId.read(in), Boolean.TRUE);
+			}
+		}
+	}
+
+	/**
+	 * Ids grouped by number of accesses, in a list of increasing frequencies,
+	 * each group in creation order. An access moves the id to the next group.
+	 */
+	private static class LfuEvictionQueue extends EvictionQueue {
+
+		/**
+		 * Sentinel of the circular list of groups.
+		 */
+		private final Frequency head = new Frequency(0);
+
+		private final Map<ConversationId, Frequency> frequencies = new HashMap<ConversationId, Frequency>();
+
+		LfuEvictionQueue() {
+			head.next = head;
+			head.previous = head;
+		}
+
+		int size() {
+			return frequencies.size();
+		}
+
+		void add(ConversationId id) {
+			if (frequencies.containsKey(id)) {
+				return;
+			}
+			add(id, 1, head);
+		}
+
+		void access(ConversationId id) {
+			final Frequency frequency = frequencies.get(id);
+			if (frequency != null) {
+				frequency.ids.remove(id);
+				add(id, frequency.count + 1, frequency);
+				unlinkIfEmpty(frequency);
+			}
+		}
+
+		boolean remove(ConversationId id) {
+			final Frequency frequency = frequencies.remove(id);
+			if (frequency == null) {
+				return false;
+			}
+			frequency.ids.remove(id);
+			unlinkIfEmpty(frequency);
+			return true;
+		}
+
+		ConversationId poll(ConversationId spared) {
+			for (Frequency frequency = head.next; frequency != head; frequency = frequency.next) {
+				for (ConversationId id : frequency.ids) {
+					if (!id.equals(spared)) {
+						remove(id);
+						return id;
+					}
+				}
+			}
+			return null;
+		}
+
+		Collection<ConversationId> ids() {
+			return frequencies.keySet();
+		}
+
+		void write(ObjectOutputStream out) throws IOException {
+			out.writeInt(frequencies.size());
+			for (Frequency frequency = head.next; frequency != head; frequency = frequency.next) {
+				for (ConversationId id : frequency.ids) {
+					UidConversationId.write(id, out);
+					out.writeInt(frequency.count);
+				}
+			}
+		}
+
+		void read(ObjectInputStream in) throws IOException,
+				ClassNotFoundException {
+			for (int i = in.readInt(); i > 0; i--) {
+				final ConversationId id = UidConversationId.read(in);
+				// written in increasing frequency order
+				add(id, in.readInt(), head.previous);
+			}
+		}
+
+		/**
+		 * Add an id to the group of the given count, which is either the given
+		 * group or the one next to it, creating it if needed.
+		 */
+		private void add(ConversationId id, int count, Frequency previous) {
+			Frequency frequency = previous;
+			if (frequency.count != count) {
+				frequency = previous.next;
+				if (frequency.count != count) {
+					frequency = new Frequency(count);
+					frequency.previous = previous;
+					frequency.next = previous.next;
+					previous.next.previous = frequency;
+					previous.next = frequency;
+				}
+			}
+			frequency.ids.add(id);
+			frequencies.put(id, frequency);
+		}
+
+		private void unlinkIfEmpty(Frequency frequency) {
+			if (frequency.ids.isEmpty()) {
+				frequency.previous.next = frequency.next;
+				frequency.next.previous = frequency.previous;
+			}
+		}
+
+		private static class Frequency {
+
+			final int count;
+
+			final LinkedHashSet<ConversationId> ids = new LinkedHashSet<ConversationId>();
+
+			Frequency previous;
+
+			Frequency next;
+
+			Frequency(int count) {
+				this.count = count;
+			}
+		}
+	}
+}
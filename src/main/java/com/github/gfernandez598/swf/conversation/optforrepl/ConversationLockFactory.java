@@ -20,6 +20,8 @@ package com.github.gfernandez598.swf.conversation.optforrepl;
  * #L%
  */
 
+import java.io.Serializable;
+
 import org.springframework.webflow.conversation.impl.ConversationLock;
 import org.springframework.webflow.conversation.impl.JdkConcurrentConversationLock;
 
@@ -27,13 +29,26 @@ import org.springframework.webflow.conversation.impl.JdkConcurrentConversationLo
  * <p>
  * Base on workaround attached to issue SWF-1030.
  * </p>
+ * <p>
+ * Instances create the locks of the conversations of a
+ * {@link ReplicationOptimizedSessionBindingConversationManager} (see
+ * {@link ReplicationOptimizedSessionBindingConversationManager#setConversationLockFactory(ConversationLockFactory)}
+ * ). This one creates exclusive locks waiting up to the lock timeout;
+ * subclasses create other kinds of locks. Being bound to the session along
+ * with the conversation container, they must be serializable.
+ * </p>
  * 
  * @see <a
  *      href="https://jira.spring.io/browse/SWF-1030">https://jira.spring.io/browse/SWF-1030</a>
+ * @see FairConversationLockFactory
+ * @see ReadWriteConversationLockFactory
+ * @see FailFastConversationLockFactory
  * @author gfernandez598
  * 
  */
-public class ConversationLockFactory {
+public class ConversationLockFactory implements Serializable {
+
+	private static final long serialVersionUID = -1960418757203460934L;
 
 	/**
 	 * <p>
@@ -47,4 +62,15 @@ public class ConversationLockFactory {
 	public static ConversationLock createLock(int lockTimeout) {
 		return new JdkConcurrentConversationLock(lockTimeout);
 	}
+
+	/**
+	 * Create the lock of a conversation.
+	 * 
+	 * @param lockTimeoutSeconds
+	 *            the time to wait for the lock, in seconds
+	 * @return the lock
+	 */
+	public ConversationLock createConversationLock(int lockTimeoutSeconds) {
+		return createLock(lockTimeoutSeconds);
+	}
 }
@@ -0,0 +1,72 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * <p>
+ * Keeps the state of the conversations out of the heap of the session: once
+ * a conversation is unlocked its attributes are serialized into the store,
+ * leaving in the session just a small handle (the id, the key and the lock of
+ * the conversation), and they are read back when next accessed.
+ * </p>
+ * <p>
+ * {@link SessionMapConversationStore}, the default, keeps the conversations
+ * whole in the session map instead. Implementations are shared by every
+ * session of the node, so they must be thread safe. The keys are the session
+ * keys of the conversations, unique as the conversation ids are.
+ * </p>
+ * 
+ * @see ReplicationOptimizedSessionBindingConversationManager#setConversationStore(ConversationStore)
+ * @author gfernandez598
+ * 
+ */
+public interface ConversationStore {
+
+	/**
+	 * Store the state of a conversation, replacing the one stored under the
+	 * same key, if any.
+	 * 
+	 * @param key
+	 *            the key of the conversation
+	 * @param state
+	 *            the serialized state
+	 * @return whether stored, if not (i.e. the store is full) the state is
+	 *         kept on the heap
+	 */
+	boolean store(String key, byte[] state);
+
+	/**
+	 * Returns the state of a conversation.
+	 * 
+	 * @param key
+	 *            the key of the conversation
+	 * @return the serialized state, null if not stored
+	 */
+	byte[] load(String key);
+
+	/**
+	 * Remove the state of a conversation, if stored.
+	 * 
+	 * @param key
+	 *            the key of the conversation
+	 */
+	void remove(String key);
+}
@@ -0,0 +1,368 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.springframework.webflow.context.ExternalContext;
+import org.springframework.webflow.context.ExternalContextHolder;
+
+/**
+ * <p>
+ * Serializes and deserializes the conversations of a session in bulk, in
+ * parallel in a fork-join pool, i.e. to drain a node before a rolling deploy
+ * and warm up another one.
+ * </p>
+ * <p>
+ * A stream holds a header (a magic number, the format version and the number
+ * of conversations) followed by a frame per conversation: its length and its
+ * serialized bytes. A directory holds a file per conversation, named after its
+ * position, written and read in parallel too.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+final class ConversationTransfer {
+
+	private static final int MAGIC = 0x53574643;
+
+	private static final byte FORMAT_VERSION = 1;
+
+	private static final String FILE_SUFFIX = ".conversation";
+
+	/**
+	 * Conversations serialized by each task, at most.
+	 */
+	private static final int CONVERSATIONS_PER_TASK = 4;
+
+	private ConversationTransfer() {
+	}
+
+	/**
+	 * Write the given conversations to a stream.
+	 * 
+	 * @param conversations
+	 *            the conversations
+	 * @param out
+	 *            the stream, not closed
+	 * @param pool
+	 *            the pool serializing them
+	 * @throws IOException
+	 *             if a conversation cannot be serialized or written
+	 */
+	static void write(List<ContainedConversation> conversations,
+			OutputStream out, ForkJoinPool pool) throws IOException {
+		final byte[][] frames = new byte[conversations.size()][];
+		invoke(pool, new SerializeTask(conversations, frames, null, 0,
+				frames.length, ExternalContextHolder.getExternalContext()));
+		final DataOutputStream data = new DataOutputStream(
+				new BufferedOutputStream(out));
+		data.writeInt(MAGIC);
+		data.writeByte(FORMAT_VERSION);
+		data.writeInt(frames.length);
+		for (byte[] frame : frames) {
+			data.writeInt(frame.length);
+			data.write(frame);
+		}
+		data.flush();
+	}
+
+	/**
+	 * Read the conversations written by
+	 * {@link #write(List, OutputStream, ForkJoinPool)}.
+	 * 
+	 * @param in
+	 *            the stream, not closed
+	 * @param pool
+	 *            the pool deserializing them
+	 * @return the conversations
+	 * @throws IOException
+	 *             if a conversation cannot be read or deserialized
+	 */
+	static List<ContainedConversation> read(InputStream in, ForkJoinPool pool)
+			throws IOException {
+		final DataInputStream data = new DataInputStream(
+				new BufferedInputStream(in));
+		if (data.readInt() != MAGIC) {
+			throw new IOException("Not a stream of conversations");
+		}
+		final byte version = data.readByte();
+		if (version != FORMAT_VERSION) {
+			throw new IOException(
+					"Unsupported conversation stream format version " + version);
+		}
+		final byte[][] frames = new byte[data.readInt()][];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = new byte[data.readInt()];
+			data.readFully(frames[i]);
+		}
+		final ContainedConversation[] conversations = new ContainedConversation[frames.length];
+		invoke(pool, new DeserializeTask(frames, null, conversations, 0,
+				frames.length));
+		return Arrays.asList(conversations);
+	}
+
+	/**
+	 * Write the given conversations to a directory, a file each.
+	 * 
+	 * @param conversations
+	 *            the conversations
+	 * @param directory
+	 *            the directory, created if needed
+	 * @param pool
+	 *            the pool serializing and writing them
+	 * @throws IOException
+	 *             if a conversation cannot be serialized or written
+	 */
+	static void write(List<ContainedConversation> conversations,
+			File directory, ForkJoinPool pool) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create directory " + directory);
+		}
+		invoke(pool, new SerializeTask(conversations, null, directory, 0,
+				conversations.size(), ExternalContextHolder.getExternalContext()));
+	}
+
+	/**
+	 * Read the conversations written by
+	 * {@link #write(List, File, ForkJoinPool)}.
+	 * 
+	 * @param directory
+	 *            the directory
+	 * @param pool
+	 *            the pool reading and deserializing them
+	 * @return the conversations
+	 * @throws IOException
+	 *             if a conversation cannot be read or deserialized
+	 */
+	static List<ContainedConversation> read(File directory, ForkJoinPool pool)
+			throws IOException {
+		final File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(FILE_SUFFIX);
+			}
+		});
+		if (files == null) {
+			throw new IOException("Could not list directory " + directory);
+		}
+		final ContainedConversation[] conversations = new ContainedConversation[files.length];
+		invoke(pool, new DeserializeTask(null, files, conversations, 0,
+				files.length));
+		return Arrays.asList(conversations);
+	}
+
+	private static void invoke(ForkJoinPool pool, RecursiveAction task)
+			throws IOException {
+		try {
+			pool.invoke(task);
+		} catch (TransferException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static byte[] serialize(ContainedConversation conversation)
+			throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new SelfContainedOutputStream(bytes);
+		out.writeObject(conversation);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static ContainedConversation deserialize(InputStream in)
+			throws IOException {
+		try {
+			return (ContainedConversation) new ObjectInputStream(in)
+					.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Could not deserialize conversation", e);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static File getFile(File directory, int index) {
+		return new File(directory, index + FILE_SUFFIX);
+	}
+
+	/**
+	 * Serializes a range of conversations, into frames or files, splitting
+	 * it.
+	 */
+	private static class SerializeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<ContainedConversation> conversations;
+
+		private final byte[][] frames;
+
+		private final File directory;
+
+		private final int from;
+
+		private final int to;
+
+		/**
+		 * The context of the caller, paged out conversations are read through
+		 * it.
+		 */
+		private final ExternalContext externalContext;
+
+		SerializeTask(List<ContainedConversation> conversations,
+				byte[][] frames, File directory, int from, int to,
+				ExternalContext externalContext) {
+			this.conversations = conversations;
+			this.frames = frames;
+			this.directory = directory;
+			this.from = from;
+			this.to = to;
+			this.externalContext = externalContext;
+		}
+
+		protected void compute() {
+			if (to - from > CONVERSATIONS_PER_TASK) {
+				final int middle = (from + to) >>> 1;
+				invokeAll(new SerializeTask(conversations, frames, directory,
+						from, middle, externalContext), new SerializeTask(
+						conversations, frames, directory, middle, to,
+						externalContext));
+				return;
+			}
+			final ExternalContext previous = ExternalContextHolder
+					.getExternalContext();
+			ExternalContextHolder.setExternalContext(externalContext);
+			try {
+				for (int i = from; i < to; i++) {
+					final byte[] bytes = serialize(conversations.get(i));
+					if (frames != null) {
+						frames[i] = bytes;
+					} else {
+						final OutputStream out = new FileOutputStream(getFile(
+								directory, i));
+						try {
+							out.write(bytes);
+						} finally {
+							out.close();
+						}
+					}
+				}
+			} catch (IOException e) {
+				throw new TransferException(e);
+			} finally {
+				ExternalContextHolder.setExternalContext(previous);
+			}
+		}
+	}
+
+	/**
+	 * Deserializes a range of conversations, from frames or files, splitting
+	 * it.
+	 */
+	private static class DeserializeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final byte[][] frames;
+
+		private final File[] files;
+
+		private final ContainedConversation[] conversations;
+
+		private final int from;
+
+		private final int to;
+
+		DeserializeTask(byte[][] frames, File[] files,
+				ContainedConversation[] conversations, int from, int to) {
+			this.frames = frames;
+			this.files = files;
+			this.conversations = conversations;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from > CONVERSATIONS_PER_TASK) {
+				final int middle = (from + to) >>> 1;
+				invokeAll(new DeserializeTask(frames, files, conversations,
+						from, middle), new DeserializeTask(frames, files,
+						conversations, middle, to));
+				return;
+			}
+			try {
+				for (int i = from; i < to; i++) {
+					conversations[i] = deserialize(frames != null ? new ByteArrayInputStream(
+							frames[i]) : new BufferedInputStream(
+							new FileInputStream(files[i])));
+				}
+			} catch (IOException e) {
+				throw new TransferException(e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the conversations to be read in another session: the attribute
+	 * values shared among the conversations of this one are written whole.
+	 */
+	static class SelfContainedOutputStream extends ObjectOutputStream {
+
+		SelfContainedOutputStream(OutputStream out) throws IOException {
+			super(out);
+		}
+	}
+
+	/**
+	 * Carries the failure of a task to the caller.
+	 */
+	private static class TransferException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		TransferException(IOException cause) {
+			super(cause);
+		}
+
+		public IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.webflow.conversation.ConversationId;
+
+/**
+ * <p>
+ * A conversation whose attributes are kept each one in its own slot of the
+ * session, next to the slot of the conversation which just holds their names.
+ * Unlocking it publishes only the attributes written (or removed), or read,
+ * since it was locked, so attributes the request did not touch are not
+ * replicated again. Values read may have been changed in place (i.e. Spring
+ * Web Flow adds each new snapshot to the snapshot group it reads, without
+ * putting it back), so they are published too, unless immutable or read under
+ * a shared lock.
+ * </p>
+ * <p>
+ * Once read back (i.e. in other node of the cluster) the values are loaded
+ * from their slots lazily, when first accessed.
+ * </p>
+ * <p>
+ * Slots are keyed by the string form of the attribute names, so the names
+ * should not differ just by type.
+ * </p>
+ * 
+ * @see ReplicationGranularity#ATTRIBUTE
+ * @author gfernandez598
+ * 
+ */
+class DeltaReplicatedConversation extends ContainedConversation {
+
+	private static final long serialVersionUID = 4329518017413498613L;
+
+	/**
+	 * Marks, in the changes, an attribute that has been removed.
+	 */
+	static final Object REMOVED = new Object();
+
+	/**
+	 * Marks, in the attributes, a value still to be loaded from its slot.
+	 */
+	private static final Object NOT_LOADED = new Object();
+
+	/**
+	 * The attributes written or removed since last saved. Only accessed while
+	 * holding the conversation lock.
+	 */
+	private transient Map<Object, Object> changes = new LinkedHashMap<Object, Object>();
+
+	/**
+	 * Create an empty conversation, to be read by
+	 * {@link #readExternal(ObjectInput)}. Required by
+	 * {@link java.io.Externalizable}, not to be used directly.
+	 */
+	public DeltaReplicatedConversation() {
+	}
+
+	/**
+	 * Create a new delta replicated conversation.
+	 * 
+	 * @param container
+	 *            the container containing the conversation
+	 * @param id
+	 *            the unique id assigned to the conversation
+	 */
+	public DeltaReplicatedConversation(
+			SessionMapConversationContainer container, ConversationId id) {
+		super(container, id);
+	}
+
+	public Object getAttribute(Object name) {
+		Object value = super.getAttribute(name);
+		if (value == NOT_LOADED) {
+			value = loadAttribute(name);
+			if (!isLockedShared()) {
+				getAttributeMap().put(name, value);
+			}
+		}
+		if (!isImmutable(value) && !changes.containsKey(name)
+				&& isLockedExclusively()) {
+			// may be changed in place, publish it again
+			changes.put(name, value);
+			markDirty();
+		}
+		return value;
+	}
+
+	/**
+	 * Returns whether an attribute value cannot be changed in place.
+	 */
+	private static boolean isImmutable(Object value) {
+		return value == null || value instanceof String
+				|| value instanceof Boolean || value instanceof Character
+				|| value instanceof Integer || value instanceof Long
+				|| value instanceof Enum;
+	}
+
+	public void putAttribute(Object name, Object value) {
+		super.putAttribute(name, value);
+		changes.put(name, value);
+	}
+
+	public void removeAttribute(Object name) {
+		if (getAttributeMap().containsKey(name)) {
+			changes.put(name, REMOVED);
+		}
+		super.removeAttribute(name);
+	}
+
+	/**
+	 * Returns the attributes written since last saved, mapping the removed
+	 * ones to {@link #REMOVED}.
+	 */
+	Map<Object, Object> takeChanges() {
+		final Map<Object, Object> result = changes;
+		changes = new LinkedHashMap<Object, Object>();
+		return result;
+	}
+
+	/**
+	 * Returns the key of the session slot of an attribute.
+	 * 
+	 * @param conversationKey
+	 *            the key of the slot of the conversation
+	 * @param name
+	 *            the attribute name
+	 * @return the key
+	 */
+	static String getAttributeKey(String conversationKey, Object name) {
+		return conversationKey + ".attribute." + name;
+	}
+
+	private Object loadAttribute(Object name) {
+		final SessionMapConversationContainer container = getContainer();
+		if (container == null) {
+			return null;
+		}
+		return container.getAttributeSlot(getAttributeKey(
+				container.getConversationKey(getId()), name));
+	}
+
+	/**
+	 * Write the number of attributes and their names. The values are in their
+	 * own slots, but those written since last saved, not published yet, are
+	 * written along.
+	 * 
+	 * @param out
+	 *            the output
+	 * @throws IOException
+	 */
+	void writeAttributes(ObjectOutput out) throws IOException {
+		final Map<Object, Object> attributes = getAttributeMap();
+		final Object[] names = attributes.keySet().toArray();
+		out.writeInt(names.length);
+		for (Object name : names) {
+			writeAttributeName(name, out);
+			final boolean pending = changes.containsKey(name);
+			out.writeBoolean(pending);
+			if (pending) {
+				out.writeObject(attributes.get(name));
+			}
+		}
+	}
+
+	/**
+	 * Read the attributes written by {@link #writeAttributes(ObjectOutput)},
+	 * leaving the values not written along to be loaded. Those written along
+	 * are still to be published.
+	 * 
+	 * @param in
+	 *            the input
+	 * @return the attributes
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	Map<Object, Object> readAttributes(ObjectInput in) throws IOException,
+			ClassNotFoundException {
+		final int size = in.readInt();
+		final Map<Object, Object> result = new HashMap<Object, Object>(
+				size * 4 / 3 + 1);
+		for (int i = 0; i < size; i++) {
+			final Object name = readAttributeName(in);
+			if (in.readBoolean()) {
+				final Object value = in.readObject();
+				result.put(name, value);
+				changes.put(name, value);
+			} else {
+				result.put(name, NOT_LOADED);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the names of the attributes, for removing their slots.
+	 */
+	Object[] getAttributeNames() {
+		return getAttributeMap().keySet().toArray();
+	}
+}
@@ -0,0 +1,84 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * An {@link ExternalConversationStore} living in the JVM itself, a stand-in
+ * for a key-value server to run and test locally: a single node, or several
+ * conversation managers sharing one instance as if they were the nodes of a
+ * cluster. It counts the round trips a server would take.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class EmbeddedConversationStore implements ExternalConversationStore {
+
+	private final ConcurrentMap<String, byte[]> states = new ConcurrentHashMap<String, byte[]>();
+
+	private final AtomicLong roundTrips = new AtomicLong();
+
+	/**
+	 * Returns the number of states stored.
+	 */
+	public int getStoredCount() {
+		return states.size();
+	}
+
+	/**
+	 * Returns the round trips a server would have taken so far.
+	 */
+	public long getRoundTrips() {
+		return roundTrips.get();
+	}
+
+	public boolean store(String key, byte[] state) {
+		roundTrips.incrementAndGet();
+		states.put(key, state);
+		return true;
+	}
+
+	public byte[] load(String key) {
+		roundTrips.incrementAndGet();
+		return states.get(key);
+	}
+
+	public void remove(String key) {
+		roundTrips.incrementAndGet();
+		states.remove(key);
+	}
+
+	public void write(Map<String, byte[]> states,
+			Collection<String> removedKeys) {
+		roundTrips.incrementAndGet();
+		this.states.putAll(states);
+		for (String key : removedKeys) {
+			this.states.remove(key);
+		}
+	}
+}
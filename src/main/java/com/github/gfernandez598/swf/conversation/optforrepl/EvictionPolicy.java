@@ -0,0 +1,52 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * <p>
+ * Which conversation of a session is ended when a new one exceeds the maximum
+ * number of conversations allowed. The conversation just created is never the
+ * one evicted.
+ * </p>
+ * 
+ * @see ReplicationOptimizedSessionBindingConversationManager#setEvictionPolicy(EvictionPolicy)
+ * @author gfernandez598
+ * 
+ */
+public enum EvictionPolicy {
+
+	/**
+	 * The oldest created conversation, even if it is still being used. This is
+	 * the default.
+	 */
+	FIFO,
+
+	/**
+	 * The least recently used conversation, by last lookup or unlock.
+	 */
+	LRU,
+
+	/**
+	 * The least frequently used conversation, by number of lookups and
+	 * unlocks. Among equally used ones, the oldest created.
+	 */
+	LFU
+}
@@ -0,0 +1,63 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <p>
+ * A {@link ConversationStore} outside of the node, i.e. a key-value server
+ * such as Redis, shared by every node of the cluster. The session then holds
+ * just the index of the conversations and a handle of each one (its id and the
+ * key of its state), so session replication carries next to nothing and a
+ * node taking over a session reads the conversations from the store.
+ * </p>
+ * <p>
+ * Every state is written under a key of its own, never overwritten (the key
+ * of the conversation followed by a random suffix), so the values can be
+ * cached by the nodes (see {@link NearCachedConversationStore}) without ever
+ * becoming stale. The writes of a request are sent together to
+ * {@link #write(Map, Collection)}, i.e. pipelined, rather than one by one.
+ * </p>
+ * <p>
+ * The states of the conversations not ended one by one are removed when the
+ * session ends by the node the session ends on, as far as it knows about
+ * them, so the store should expire the states some time after the session
+ * timeout as a safety net.
+ * </p>
+ * 
+ * @see EmbeddedConversationStore
+ * @author gfernandez598
+ * 
+ */
+public interface ExternalConversationStore extends ConversationStore {
+
+	/**
+	 * Store and remove states at once, in a single round trip to the store.
+	 * 
+	 * @param states
+	 *            the states to store, by key
+	 * @param removedKeys
+	 *            the keys of the states to remove
+	 */
+	void write(Map<String, byte[]> states, Collection<String> removedKeys);
+}
@@ -0,0 +1,112 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.webflow.context.ExternalContextHolder;
+import org.springframework.webflow.core.collection.MutableAttributeMap;
+
+/**
+ * <p>
+ * The writes of a request to an {@link ExternalConversationStore}, kept in
+ * the request map until flushed all at once, in a single round trip.
+ * </p>
+ * <p>
+ * Only accessed by the thread serving the request.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+final class ExternalStoreBatch {
+
+	private static final String REQUEST_ATTRIBUTE = ExternalStoreBatch.class
+			.getName() + ".REQUEST.";
+
+	private final ExternalConversationStore store;
+
+	private final Map<String, byte[]> states = new LinkedHashMap<String, byte[]>();
+
+	private final Set<String> removedKeys = new LinkedHashSet<String>();
+
+	private ExternalStoreBatch(ExternalConversationStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Store a state, once the batch of the current request is flushed.
+	 */
+	static void store(ExternalConversationStore store, String key, byte[] state) {
+		final ExternalStoreBatch batch = get(store, true);
+		batch.removedKeys.remove(key);
+		batch.states.put(key, state);
+	}
+
+	/**
+	 * Remove a state, once the batch of the current request is flushed.
+	 */
+	static void remove(ExternalConversationStore store, String key) {
+		final ExternalStoreBatch batch = get(store, true);
+		if (batch.states.remove(key) == null) {
+			batch.removedKeys.add(key);
+		}
+	}
+
+	/**
+	 * Send the writes of the current request to the store, if any.
+	 */
+	static void flush(ExternalConversationStore store) {
+		final ExternalStoreBatch batch = get(store, false);
+		if (batch == null) {
+			return;
+		}
+		getRequestMap().remove(getRequestAttribute(store));
+		batch.store.write(batch.states, batch.removedKeys);
+	}
+
+	private static ExternalStoreBatch get(ExternalConversationStore store,
+			boolean create) {
+		final MutableAttributeMap<Object> requestMap = getRequestMap();
+		final String attribute = getRequestAttribute(store);
+		ExternalStoreBatch batch = (ExternalStoreBatch) requestMap
+				.get(attribute);
+		if (batch == null && create) {
+			batch = new ExternalStoreBatch(store);
+			requestMap.put(attribute, batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * Returns the request attribute of the batch of a store, one per store.
+	 */
+	private static String getRequestAttribute(ExternalConversationStore store) {
+		return REQUEST_ATTRIBUTE + System.identityHashCode(store);
+	}
+
+	private static MutableAttributeMap<Object> getRequestMap() {
+		return ExternalContextHolder.getExternalContext().getRequestMap();
+	}
+}
@@ -0,0 +1,74 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.webflow.conversation.impl.ConversationLock;
+
+/**
+ * <p>
+ * Creates exclusive conversation locks that wait just a short time (none by
+ * default) instead of the lock timeout, throwing a
+ * {@link ConversationBusyException} when the conversation is being used by
+ * another request. A request on a busy conversation is then answered at once
+ * (i.e. with a 409 Conflict) rather than holding a servlet thread.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class FailFastConversationLockFactory extends ConversationLockFactory {
+
+	private static final long serialVersionUID = -6530981647385326195L;
+
+	/**
+	 * The time to wait for the lock, in milliseconds.
+	 */
+	private long waitMillis;
+
+	/**
+	 * Returns the time to wait for the lock, in milliseconds. The default is
+	 * 0: do not wait.
+	 */
+	public long getWaitMillis() {
+		return waitMillis;
+	}
+
+	/**
+	 * Sets the time to wait for the lock before reporting the conversation as
+	 * busy, in milliseconds. The default is 0: do not wait.
+	 * 
+	 * @param waitMillis
+	 *            the time in milliseconds
+	 */
+	public void setWaitMillis(long waitMillis) {
+		this.waitMillis = waitMillis;
+	}
+
+	/**
+	 * Create the lock of a conversation, ignoring the lock timeout.
+	 */
+	public ConversationLock createConversationLock(int lockTimeoutSeconds) {
+		return new ReentrantConversationLock(new ReentrantLock(), waitMillis,
+				true);
+	}
+}
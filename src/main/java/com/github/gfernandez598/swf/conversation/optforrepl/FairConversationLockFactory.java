@@ -0,0 +1,46 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.webflow.conversation.impl.ConversationLock;
+
+/**
+ * <p>
+ * Creates exclusive conversation locks granted in arrival order, so a burst of
+ * requests on the same conversation cannot starve any of them until it times
+ * out. Fairness lowers the throughput under contention.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class FairConversationLockFactory extends ConversationLockFactory {
+
+	private static final long serialVersionUID = 8012368465117420379L;
+
+	public ConversationLock createConversationLock(int lockTimeoutSeconds) {
+		return new ReentrantConversationLock(new ReentrantLock(true),
+				TimeUnit.SECONDS.toMillis(lockTimeoutSeconds), false);
+	}
+}
@@ -0,0 +1,104 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.webflow.conversation.impl.ConversationLock;
+import org.springframework.webflow.conversation.ConversationLockException;
+import org.springframework.webflow.conversation.impl.LockInterruptedException;
+
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ConversationMetrics.LockKind;
+
+/**
+ * <p>
+ * A conversation lock reporting the time waited for it, the time held, the
+ * requests queued on it and its timeouts through a {@link LockMetrics}.
+ * </p>
+ * <p>
+ * Only one acquisition time is kept, so the hold time of a lock shared by
+ * several holders (see {@link ReadWriteConversationLockFactory}) is measured
+ * from its last acquisition.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+class InstrumentedConversationLock implements SharableConversationLock {
+
+	private static final long serialVersionUID = 2214870343530468710L;
+
+	private final ConversationLock lock;
+
+	/**
+	 * The metrics, not replicated: conversation locks are created on each
+	 * node.
+	 */
+	private final transient LockMetrics metrics;
+
+	/**
+	 * The number of requests waiting for the lock.
+	 */
+	private final AtomicInteger waiters = new AtomicInteger();
+
+	private volatile long acquiredAt;
+
+	/**
+	 * Create a new instrumented lock.
+	 * 
+	 * @param lock
+	 *            the actual lock
+	 * @param metrics
+	 *            the metrics to report to
+	 */
+	InstrumentedConversationLock(ConversationLock lock, LockMetrics metrics) {
+		this.lock = lock;
+		this.metrics = metrics;
+	}
+
+	public void lock() throws ConversationLockException {
+		final int queueLength = waiters.getAndIncrement();
+		final long waitStart = metrics.startWait();
+		try {
+			lock.lock();
+		} catch (ConversationLockException e) {
+			if (!(e instanceof LockInterruptedException)) {
+				metrics.timedOut(LockKind.CONVERSATION, waitStart, queueLength);
+			}
+			throw e;
+		} finally {
+			waiters.decrementAndGet();
+		}
+		acquiredAt = metrics.acquired(LockKind.CONVERSATION, waitStart,
+				queueLength);
+	}
+
+	public boolean isHeldShared() {
+		return lock instanceof SharableConversationLock
+				&& ((SharableConversationLock) lock).isHeldShared();
+	}
+
+	public void unlock() {
+		final long heldSince = acquiredAt;
+		lock.unlock();
+		metrics.released(LockKind.CONVERSATION, heldSince);
+	}
+}
@@ -0,0 +1,156 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ConversationMetrics;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ConversationMetrics.LockKind;
+
+/**
+ * <p>
+ * Times the locks, one acquisition in {@link #getSampleRate()}, and reports
+ * them to a {@link ConversationMetrics}. Reading the clock is the bulk of the
+ * cost, so sampling keeps it low enough to measure production traffic.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+final class LockMetrics {
+
+	/**
+	 * Measuring nothing.
+	 */
+	static final LockMetrics NONE = new LockMetrics(null, 1);
+
+	private final ConversationMetrics metrics;
+
+	private final int sampleRate;
+
+	/**
+	 * Create new lock metrics.
+	 * 
+	 * @param metrics
+	 *            what receives the timings, null to measure nothing
+	 * @param sampleRate
+	 *            one acquisition in how many is timed, 1 to time them all
+	 */
+	LockMetrics(ConversationMetrics metrics, int sampleRate) {
+		this.metrics = metrics;
+		this.sampleRate = sampleRate;
+	}
+
+	ConversationMetrics getMetrics() {
+		return metrics;
+	}
+
+	int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Acquire a lock, timing the wait if sampled.
+	 * 
+	 * @return the time it was acquired, to be handed to
+	 *         {@link #unlock(LockKind, Lock, long)}, 0 if not sampled
+	 */
+	long lock(LockKind kind, Lock lock) {
+		final long waitStart = startWait();
+		if (waitStart == 0) {
+			lock.lock();
+			return 0;
+		}
+		final int queueLength = lock instanceof ReentrantLock ? ((ReentrantLock) lock)
+				.getQueueLength() : -1;
+		lock.lock();
+		return acquired(kind, waitStart, queueLength);
+	}
+
+	/**
+	 * Release a lock acquired by {@link #lock(LockKind, Lock)}, timing the
+	 * hold if sampled.
+	 */
+	void unlock(LockKind kind, Lock lock, long acquiredAt) {
+		lock.unlock();
+		released(kind, acquiredAt);
+	}
+
+	/**
+	 * Returns the time a wait for a lock starts, 0 if not sampled.
+	 */
+	long startWait() {
+		if (metrics == null || sampleRate > 1
+				&& ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+			return 0;
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Report a lock as acquired, if sampled.
+	 * 
+	 * @param waitStart
+	 *            the time returned by {@link #startWait()}
+	 * @param queueLength
+	 *            the threads found waiting, -1 if unknown
+	 * @return the time it was acquired, 0 if not sampled
+	 */
+	long acquired(LockKind kind, long waitStart, int queueLength) {
+		if (waitStart == 0) {
+			return 0;
+		}
+		final long acquiredAt = System.nanoTime();
+		metrics.lockAcquired(kind, acquiredAt - waitStart, queueLength);
+		return acquiredAt;
+	}
+
+	/**
+	 * Report a lock as not acquired in time, whether sampled or not.
+	 * 
+	 * @param waitStart
+	 *            the time returned by {@link #startWait()}
+	 * @param queueLength
+	 *            the threads found waiting, -1 if unknown
+	 */
+	void timedOut(LockKind kind, long waitStart, int queueLength) {
+		if (metrics == null) {
+			return;
+		}
+		metrics.lockTimedOut(kind, waitStart == 0 ? -1 : System.nanoTime()
+				- waitStart, queueLength);
+	}
+
+	/**
+	 * Report a lock as released, if sampled.
+	 * 
+	 * @param acquiredAt
+	 *            the time returned when acquired
+	 */
+	void released(LockKind kind, long acquiredAt) {
+		// the metrics may have been replaced while the lock was held
+		if (acquiredAt != 0 && metrics != null) {
+			metrics.lockReleased(kind, System.nanoTime() - acquiredAt);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+/**
+ * <p>
+ * Keeps the state of the conversations in a memory mapped file of the local
+ * disk, so the heap of the node is bounded no matter how many conversations
+ * are paused: the operating system keeps the pages recently used in memory
+ * and writes the rest to the disk. Best combined with
+ * {@link ReplicationOptimizedSessionBindingConversationManager#setPageOutIdleSeconds(int)}
+ * , so just the idle conversations are spilled to it.
+ * </p>
+ * <p>
+ * The file is created in the given directory (see
+ * {@link #setDirectory(File)}) when the first state is stored, grows a segment
+ * at a time up to the capacity, and is deleted by {@link #close()} or on exit.
+ * It is not meant to survive a restart: the conversations are in the sessions,
+ * and replicated, as before.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class MappedFileConversationStore extends OffHeapConversationStore {
+
+	private static final Log logger = LogFactory
+			.getLog(MappedFileConversationStore.class);
+
+	private File directory = new File(System.getProperty("java.io.tmpdir"));
+
+	/**
+	 * The file mapped, null until the first segment is taken. Guarded by this
+	 * store, as the rest of the file state.
+	 */
+	private File file;
+
+	private RandomAccessFile randomAccessFile;
+
+	/**
+	 * The bytes of the file mapped so far.
+	 */
+	private long mappedBytes;
+
+	/**
+	 * Create a store with a capacity of 1 GB.
+	 */
+	public MappedFileConversationStore() {
+		setCapacity(1024L * 1024 * 1024);
+	}
+
+	/**
+	 * Returns the directory the file is created in.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Sets the directory the file is created in, local and with room for the
+	 * capacity. The default is the temporary directory of the JVM.
+	 * 
+	 * @param directory
+	 *            the directory
+	 */
+	public void setDirectory(File directory) {
+		Assert.notNull(directory, "A directory must be supplied.");
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the file mapped, null if not created yet.
+	 */
+	public synchronized File getFile() {
+		return file;
+	}
+
+	/**
+	 * Map the next segment of the file, creating it if not created yet.
+	 * 
+	 * @return the segment, null if the file could not be grown
+	 */
+	protected synchronized ByteBuffer allocateSegment(int size) {
+		try {
+			if (randomAccessFile == null) {
+				file = File.createTempFile("conversations", ".store", directory);
+				file.deleteOnExit();
+				randomAccessFile = new RandomAccessFile(file, "rw");
+			}
+			final ByteBuffer segment = randomAccessFile.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, mappedBytes, size);
+			mappedBytes += size;
+			return segment;
+		} catch (IOException e) {
+			logger.warn("Could not map " + size + " more bytes of "
+					+ (file != null ? file : directory)
+					+ ", keeping conversations on the heap", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Close and delete the file. The segments stay mapped until garbage
+	 * collected, so no state must be stored or loaded afterwards.
+	 */
+	public synchronized void close() {
+		if (randomAccessFile == null) {
+			return;
+		}
+		try {
+			randomAccessFile.close();
+		} catch (IOException e) {
+			logger.warn("Could not close " + file, e);
+		}
+		if (!file.delete()) {
+			logger.warn("Could not delete " + file);
+		}
+		randomAccessFile = null;
+	}
+}
@@ -0,0 +1,184 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.util.Assert;
+
+/**
+ * <p>
+ * Keeps, on each node, the states last written to or read from an
+ * {@link ExternalConversationStore}, up to a capacity (see
+ * {@link #setCapacity(long)}), so the conversation being executed is paged
+ * back in without a round trip to the store. Writes go through to the store.
+ * </p>
+ * <p>
+ * The states are never overwritten under the same key, so a cached one is
+ * never stale, even if another node carried on with the conversation
+ * meanwhile.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class NearCachedConversationStore implements ExternalConversationStore {
+
+	private final ExternalConversationStore target;
+
+	private long capacity = 32L * 1024 * 1024;
+
+	/**
+	 * The states cached, least recently used first. Guarded by the lock.
+	 */
+	private final LinkedHashMap<String, byte[]> states = new LinkedHashMap<String, byte[]>(
+			16, 0.75f, true);
+
+	private long cachedBytes;
+
+	private final Lock lock = new ReentrantLock();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Create a near cache of the given store.
+	 * 
+	 * @param target
+	 *            the store
+	 */
+	public NearCachedConversationStore(ExternalConversationStore target) {
+		Assert.notNull(target, "A target store must be supplied.");
+		this.target = target;
+	}
+
+	/**
+	 * Returns the maximum bytes of states cached.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the maximum bytes of states cached, the least recently used ones
+	 * are dropped beyond it. The default is 32 MB.
+	 * 
+	 * @param capacity
+	 *            the maximum bytes cached
+	 */
+	public void setCapacity(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the states loaded from the cache.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the states loaded from the store.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public boolean store(String key, byte[] state) {
+		final boolean stored = target.store(key, state);
+		if (stored) {
+			cache(key, state);
+		}
+		return stored;
+	}
+
+	public byte[] load(String key) {
+		lock.lock();
+		try {
+			final byte[] state = states.get(key);
+			if (state != null) {
+				hits.incrementAndGet();
+				return state;
+			}
+		} finally {
+			lock.unlock();
+		}
+		misses.incrementAndGet();
+		final byte[] state = target.load(key);
+		if (state != null) {
+			cache(key, state);
+		}
+		return state;
+	}
+
+	public void remove(String key) {
+		uncache(key);
+		target.remove(key);
+	}
+
+	public void write(Map<String, byte[]> states,
+			Collection<String> removedKeys) {
+		target.write(states, removedKeys);
+		for (Map.Entry<String, byte[]> state : states.entrySet()) {
+			cache(state.getKey(), state.getValue());
+		}
+		for (String key : removedKeys) {
+			uncache(key);
+		}
+	}
+
+	private void cache(String key, byte[] state) {
+		if (state.length > capacity) {
+			return;
+		}
+		lock.lock();
+		try {
+			final byte[] replaced = states.put(key, state);
+			cachedBytes += state.length
+					- (replaced != null ? replaced.length : 0);
+			for (Iterator<byte[]> it = states.values().iterator(); cachedBytes > capacity;) {
+				cachedBytes -= it.next().length;
+				it.remove();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void uncache(String key) {
+		lock.lock();
+		try {
+			final byte[] removed = states.remove(key);
+			if (removed != null) {
+				cachedBytes -= removed.length;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.springframework.util.Assert;
+
+/**
+ * <p>
+ * Keeps the state of the conversations in direct memory, out of the reach of
+ * the garbage collector, so thousands of paused flows do not lengthen its
+ * pauses. Memory is taken in segments (see {@link #setSegmentSize(int)}), up
+ * to a capacity (see {@link #setCapacity(long)}), divided into blocks; each
+ * state takes as many blocks as it needs. Once full, states are kept on the
+ * heap.
+ * </p>
+ * <p>
+ * It is meant to be a singleton of the node, shared by every session.
+ * Replicating (or passivating) a session still writes the whole conversations,
+ * read back from the store.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class OffHeapConversationStore implements ConversationStore {
+
+	private int blockSize = 4 * 1024;
+
+	private int segmentSize = 16 * 1024 * 1024;
+
+	private long capacity = 256L * 1024 * 1024;
+
+	/**
+	 * The states stored, by key.
+	 */
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Copies to and from the blocks are done holding the read lock, taking and
+	 * giving back blocks holding the write lock, so no block is reused while
+	 * still being read.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * The segments taken. Guarded by the write lock.
+	 */
+	private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+
+	/**
+	 * The blocks free to be taken, as a stack. Guarded by the write lock.
+	 */
+	private int[] freeBlocks = new int[0];
+
+	private int freeBlockCount;
+
+	/**
+	 * Returns the size of the blocks, in bytes.
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Sets the size of the blocks states are stored in, in bytes. Each state
+	 * wastes, on average, half a block. The default is 4 KB.
+	 * 
+	 * @param blockSize
+	 *            the size of the blocks
+	 */
+	public void setBlockSize(int blockSize) {
+		Assert.isTrue(blockSize > 0, "The blockSize must be positive.");
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Returns the size of the segments of memory taken, in bytes.
+	 */
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Sets the size of the segments of memory taken as needed, in bytes. It
+	 * is rounded down to a multiple of the block size. The default is 16 MB.
+	 * 
+	 * @param segmentSize
+	 *            the size of the segments
+	 */
+	public void setSegmentSize(int segmentSize) {
+		Assert.isTrue(segmentSize > 0, "The segmentSize must be positive.");
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Returns the maximum memory taken, in bytes.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the maximum memory taken, in bytes. The default is 256 MB, mind
+	 * the -XX:MaxDirectMemorySize of the JVM.
+	 * 
+	 * @param capacity
+	 *            the maximum memory taken
+	 */
+	public void setCapacity(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the number of states stored.
+	 */
+	public int getStoredCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the memory taken, in bytes.
+	 */
+	public long getAllocatedBytes() {
+		lock.readLock().lock();
+		try {
+			return (long) segments.size() * getBlocksPerSegment() * blockSize;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean store(String key, byte[] state) {
+		final int[] blocks = takeBlocks((state.length + blockSize - 1)
+				/ blockSize);
+		if (blocks == null) {
+			return false;
+		}
+		final Entry replaced;
+		lock.readLock().lock();
+		try {
+			for (int i = 0; i < blocks.length; i++) {
+				final int offset = i * blockSize;
+				getBlock(blocks[i]).put(state, offset,
+						Math.min(blockSize, state.length - offset));
+			}
+			replaced = entries.put(key, new Entry(state.length, blocks));
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (replaced != null) {
+			giveBack(replaced.blocks);
+		}
+		return true;
+	}
+
+	public byte[] load(String key) {
+		lock.readLock().lock();
+		try {
+			final Entry entry = entries.get(key);
+			if (entry == null) {
+				return null;
+			}
+			final byte[] state = new byte[entry.length];
+			for (int i = 0; i < entry.blocks.length; i++) {
+				final int offset = i * blockSize;
+				getBlock(entry.blocks[i]).get(state, offset,
+						Math.min(blockSize, state.length - offset));
+			}
+			return state;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void remove(String key) {
+		final Entry removed = entries.remove(key);
+		if (removed != null) {
+			giveBack(removed.blocks);
+		}
+	}
+
+	/**
+	 * Take a new segment of memory.
+	 * 
+	 * @param size
+	 *            its size, in bytes
+	 * @return the segment, null if it cannot be taken
+	 */
+	protected ByteBuffer allocateSegment(int size) {
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	/**
+	 * Returns a buffer positioned at the start of a block, to copy it.
+	 */
+	private ByteBuffer getBlock(int block) {
+		final int blocksPerSegment = getBlocksPerSegment();
+		final ByteBuffer buffer = segments.get(block / blocksPerSegment)
+				.duplicate();
+		buffer.position((block % blocksPerSegment) * blockSize);
+		return buffer;
+	}
+
+	private int getBlocksPerSegment() {
+		return Math.max(1, segmentSize / blockSize);
+	}
+
+	/**
+	 * Take free blocks, taking new segments if needed.
+	 * 
+	 * @return the blocks, null if there is no room for them
+	 */
+	private int[] takeBlocks(int count) {
+		lock.writeLock().lock();
+		try {
+			final int blocksPerSegment = getBlocksPerSegment();
+			while (freeBlockCount < count) {
+				if ((long) (segments.size() + 1) * blocksPerSegment
+						* blockSize > capacity) {
+					return null;
+				}
+				final ByteBuffer segment = allocateSegment(blocksPerSegment
+						* blockSize);
+				if (segment == null) {
+					return null;
+				}
+				final int first = segments.size() * blocksPerSegment;
+				segments.add(segment);
+				ensureFreeCapacity(freeBlockCount + blocksPerSegment);
+				for (int block = first + blocksPerSegment - 1; block >= first; block--) {
+					freeBlocks[freeBlockCount++] = block;
+				}
+			}
+			final int[] blocks = new int[count];
+			for (int i = 0; i < count; i++) {
+				blocks[i] = freeBlocks[--freeBlockCount];
+			}
+			return blocks;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void giveBack(int[] blocks) {
+		lock.writeLock().lock();
+		try {
+			ensureFreeCapacity(freeBlockCount + blocks.length);
+			for (int block : blocks) {
+				freeBlocks[freeBlockCount++] = block;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void ensureFreeCapacity(int size) {
+		if (freeBlocks.length < size) {
+			final int[] grown = new int[Math.max(size, freeBlocks.length * 2)];
+			System.arraycopy(freeBlocks, 0, grown, 0, freeBlockCount);
+			freeBlocks = grown;
+		}
+	}
+
+	/**
+	 * A stored state: its length and the blocks holding it, in order.
+	 */
+	private static class Entry {
+
+		final int length;
+
+		final int[] blocks;
+
+		Entry(int length, int[] blocks) {
+			this.length = length;
+			this.blocks = blocks;
+		}
+	}
+}
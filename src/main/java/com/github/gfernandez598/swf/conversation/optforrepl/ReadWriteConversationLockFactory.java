@@ -0,0 +1,159 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.springframework.webflow.context.ExternalContext;
+import org.springframework.webflow.context.ExternalContextHolder;
+import org.springframework.webflow.conversation.ConversationLockException;
+import org.springframework.webflow.conversation.impl.ConversationLock;
+
+/**
+ * <p>
+ * Creates conversation locks shared among read-only requests and exclusive
+ * for the rest, so concurrent read-only requests (polling, resource fetches)
+ * on the same conversation do not queue up behind each other.
+ * </p>
+ * <p>
+ * Spring Web Flow writes the flow execution back to the conversation on every
+ * request it handles, so by default no request is taken as read-only: it is
+ * up to the application to mark as such the requests that just read the
+ * conversation (i.e. through the conversation manager), by setting the
+ * {@link #READ_ONLY_ATTRIBUTE} request attribute to {@link Boolean#TRUE}, or
+ * by overriding {@link #isReadOnlyRequest(ExternalContext)}. A request holding
+ * the shared lock must not modify the conversation.
+ * </p>
+ * <p>
+ * While holding it shared, the conversations read the values not loaded yet
+ * (i.e. those shared among conversations or kept in their own session slots)
+ * on every access, rather than keeping them, and are not paged out when
+ * unlocked: the next exclusive holder does.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class ReadWriteConversationLockFactory extends ConversationLockFactory {
+
+	private static final long serialVersionUID = 2412650328779617842L;
+
+	/**
+	 * The request attribute marking a request as read-only.
+	 */
+	public static final String READ_ONLY_ATTRIBUTE = ReadWriteConversationLockFactory.class
+			.getName() + ".READ_ONLY";
+
+	/**
+	 * Whether the locks are granted in arrival order.
+	 */
+	private boolean fair;
+
+	/**
+	 * Returns whether the locks are granted in arrival order. The default is
+	 * false.
+	 */
+	public boolean isFair() {
+		return fair;
+	}
+
+	/**
+	 * Sets whether the locks are granted in arrival order. The default is
+	 * false.
+	 * 
+	 * @param fair
+	 *            whether the locks are fair
+	 */
+	public void setFair(boolean fair) {
+		this.fair = fair;
+	}
+
+	public ConversationLock createConversationLock(int lockTimeoutSeconds) {
+		return new ReadWriteConversationLock(this,
+				new ReentrantReadWriteLock(fair),
+				TimeUnit.SECONDS.toMillis(lockTimeoutSeconds));
+	}
+
+	/**
+	 * Returns whether the given request just reads the conversations. Checks
+	 * the {@link #READ_ONLY_ATTRIBUTE} request attribute.
+	 * 
+	 * @param externalContext
+	 *            the context of the request, may be null
+	 * @return whether the request is read-only
+	 */
+	protected boolean isReadOnlyRequest(ExternalContext externalContext) {
+		return externalContext != null
+				&& Boolean.TRUE.equals(externalContext.getRequestMap().get(
+						READ_ONLY_ATTRIBUTE));
+	}
+
+	/**
+	 * A conversation lock taking the read or the write lock depending on the
+	 * current request.
+	 */
+	private static class ReadWriteConversationLock implements
+			SharableConversationLock {
+
+		private static final long serialVersionUID = -1120541749734458153L;
+
+		private final ReadWriteConversationLockFactory factory;
+
+		private final ReentrantReadWriteLock lock;
+
+		private final ReentrantConversationLock readLock;
+
+		private final ReentrantConversationLock writeLock;
+
+		ReadWriteConversationLock(ReadWriteConversationLockFactory factory,
+				ReentrantReadWriteLock lock, long timeoutMillis) {
+			this.factory = factory;
+			this.lock = lock;
+			this.readLock = new ReentrantConversationLock(lock.readLock(),
+					timeoutMillis, false);
+			this.writeLock = new ReentrantConversationLock(lock.writeLock(),
+					timeoutMillis, false);
+		}
+
+		public void lock() throws ConversationLockException {
+			if (factory.isReadOnlyRequest(ExternalContextHolder
+					.getExternalContext())) {
+				readLock.lock();
+			} else {
+				writeLock.lock();
+			}
+		}
+
+		public boolean isHeldShared() {
+			return !lock.isWriteLockedByCurrentThread()
+					&& lock.getReadHoldCount() > 0;
+		}
+
+		public void unlock() {
+			if (lock.isWriteLockedByCurrentThread()) {
+				writeLock.unlock();
+			} else {
+				readLock.unlock();
+			}
+		}
+	}
+}
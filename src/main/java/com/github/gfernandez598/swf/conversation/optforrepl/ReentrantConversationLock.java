@@ -0,0 +1,89 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.springframework.webflow.conversation.ConversationLockException;
+import org.springframework.webflow.conversation.impl.ConversationLock;
+import org.springframework.webflow.conversation.impl.LockInterruptedException;
+import org.springframework.webflow.conversation.impl.LockTimeoutException;
+
+/**
+ * <p>
+ * A conversation lock over a {@link Lock}, waiting a limited time to acquire
+ * it. When the time elapses, a {@link LockTimeoutException} is thrown, or a
+ * {@link ConversationBusyException} if the wait is meant to be short.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+class ReentrantConversationLock implements ConversationLock {
+
+	private static final long serialVersionUID = -3851217092806389405L;
+
+	private final Lock lock;
+
+	private final long timeoutMillis;
+
+	private final boolean failFast;
+
+	/**
+	 * Create a new conversation lock.
+	 * 
+	 * @param lock
+	 *            the actual lock, must be serializable
+	 * @param timeoutMillis
+	 *            the time to wait for the lock, in milliseconds
+	 * @param failFast
+	 *            whether to report the conversation as busy rather than the
+	 *            lock as timed out
+	 */
+	ReentrantConversationLock(Lock lock, long timeoutMillis, boolean failFast) {
+		this.lock = lock;
+		this.timeoutMillis = timeoutMillis;
+		this.failFast = failFast;
+	}
+
+	public void lock() throws ConversationLockException {
+		final boolean acquired;
+		try {
+			// even without waiting, unlike tryLock() that barges ahead of the
+			// requests queued on a fair lock
+			acquired = lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw new LockInterruptedException(e);
+		}
+		if (!acquired) {
+			if (failFast) {
+				throw new ConversationBusyException(timeoutMillis);
+			}
+			throw new LockTimeoutException(
+					(int) TimeUnit.MILLISECONDS.toSeconds(timeoutMillis));
+		}
+	}
+
+	public void unlock() {
+		lock.unlock();
+	}
+}
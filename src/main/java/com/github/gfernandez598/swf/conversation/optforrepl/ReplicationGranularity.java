@@ -0,0 +1,48 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * <p>
+ * How finely the state of the conversations is split among the slots of the
+ * session, which is the unit of replication for application servers doing
+ * fine grained session replication.
+ * </p>
+ * 
+ * @see ReplicationOptimizedSessionBindingConversationManager#setReplicationGranularity(ReplicationGranularity)
+ * @author gfernandez598
+ * 
+ */
+public enum ReplicationGranularity {
+
+	/**
+	 * Each conversation, with all its attributes, in its own slot. Changing
+	 * any attribute replicates the whole conversation. This is the default.
+	 */
+	CONVERSATION,
+
+	/**
+	 * Each attribute of a conversation in its own slot. Only the attributes
+	 * written (or removed), or read, while the conversation was locked
+	 * exclusively get replicated, since values read may be changed in place.
+	 */
+	ATTRIBUTE
+}
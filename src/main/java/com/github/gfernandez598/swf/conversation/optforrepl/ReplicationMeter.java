@@ -0,0 +1,208 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.webflow.context.ExternalContextHolder;
+import org.springframework.webflow.conversation.ConversationId;
+import org.springframework.webflow.core.collection.MutableAttributeMap;
+
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ReplicationMetrics;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ReplicationMetrics.BindKind;
+
+/**
+ * <p>
+ * Measures the serialized size of the values bound to the session, one
+ * request in {@link #getSampleRate()}, and reports them to a
+ * {@link ReplicationMetrics}. The binds of a request are added up in its
+ * request map until it unlocks its conversation. Only the values actually
+ * written to the session are measured, not those buffered and then dropped.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+final class ReplicationMeter {
+
+	/**
+	 * Measuring nothing.
+	 */
+	static final ReplicationMeter NONE = new ReplicationMeter(null, 1);
+
+	private static final String REQUEST_ATTRIBUTE = ReplicationMeter.class
+			.getName() + ".REQUEST";
+
+	/**
+	 * Marks a request not sampled.
+	 */
+	private static final RequestBinds NOT_SAMPLED = new RequestBinds();
+
+	private static final Log logger = LogFactory
+			.getLog(ReplicationMeter.class);
+
+	private final ReplicationMetrics metrics;
+
+	private final int sampleRate;
+
+	/**
+	 * Create a new replication meter.
+	 * 
+	 * @param metrics
+	 *            what receives the sizes, null to measure nothing
+	 * @param sampleRate
+	 *            one request in how many is measured, 1 to measure them all
+	 */
+	ReplicationMeter(ReplicationMetrics metrics, int sampleRate) {
+		this.metrics = metrics;
+		this.sampleRate = sampleRate;
+	}
+
+	ReplicationMetrics getMetrics() {
+		return metrics;
+	}
+
+	int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Measure a value just bound to the session, if the current request is
+	 * sampled.
+	 * 
+	 * @param kind
+	 *            the kind of value
+	 * @param sessionKey
+	 *            the key it was bound under
+	 * @param conversationId
+	 *            the conversation it belongs to, null if none
+	 * @param value
+	 *            the value
+	 */
+	void bound(BindKind kind, String sessionKey,
+			ConversationId conversationId, Object value) {
+		if (metrics == null) {
+			return;
+		}
+		final RequestBinds requestBinds = getRequestBinds(true);
+		if (requestBinds == NOT_SAMPLED) {
+			return;
+		}
+		final long bytes = serializedSize(value);
+		if (bytes < 0) {
+			return;
+		}
+		requestBinds.binds++;
+		requestBinds.bytes += bytes;
+		metrics.bound(kind, sessionKey,
+				conversationId != null ? conversationId.toString() : null, bytes);
+	}
+
+	/**
+	 * Report the binds of the current request, if sampled, and start over.
+	 * Called once it unlocks its conversation.
+	 */
+	void requestCompleted() {
+		if (metrics == null) {
+			return;
+		}
+		final RequestBinds requestBinds = getRequestBinds(false);
+		if (requestBinds == null) {
+			return;
+		}
+		getRequestMap().remove(REQUEST_ATTRIBUTE);
+		if (requestBinds != NOT_SAMPLED && requestBinds.binds > 0) {
+			metrics.requestCompleted(requestBinds.binds, requestBinds.bytes);
+		}
+	}
+
+	/**
+	 * Returns the binds of the current request, deciding whether it is
+	 * sampled when first asked.
+	 */
+	private RequestBinds getRequestBinds(boolean create) {
+		final MutableAttributeMap<Object> requestMap = getRequestMap();
+		RequestBinds requestBinds = (RequestBinds) requestMap
+				.get(REQUEST_ATTRIBUTE);
+		if (requestBinds == null && create) {
+			requestBinds = sampleRate > 1
+					&& ThreadLocalRandom.current().nextInt(sampleRate) != 0 ? NOT_SAMPLED
+					: new RequestBinds();
+			requestMap.put(REQUEST_ATTRIBUTE, requestBinds);
+		}
+		return requestBinds;
+	}
+
+	private MutableAttributeMap<Object> getRequestMap() {
+		return ExternalContextHolder.getExternalContext().getRequestMap();
+	}
+
+	/**
+	 * Returns the size of a value once serialized, -1 if it cannot be
+	 * serialized now (i.e. modified meanwhile by another request).
+	 */
+	private static long serializedSize(Object value) {
+		final CountingOutputStream counter = new CountingOutputStream();
+		try {
+			final ObjectOutputStream out = new ObjectOutputStream(counter);
+			out.writeObject(value);
+			out.close();
+		} catch (IOException e) {
+			logger.debug("Could not measure the serialized size of " + value, e);
+			return -1;
+		} catch (RuntimeException e) {
+			logger.debug("Could not measure the serialized size of " + value, e);
+			return -1;
+		}
+		return counter.count;
+	}
+
+	/**
+	 * The binds of a request. Only accessed by the thread serving it.
+	 */
+	private static class RequestBinds {
+
+		int binds;
+
+		long bytes;
+	}
+
+	/**
+	 * Counts the bytes written, discarding them.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+
+		long count;
+
+		public void write(int b) {
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -20,8 +20,18 @@ package com.github.gfernandez598.swf.conversation.optforrepl;
  * #L%
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
 import org.springframework.webflow.context.ExternalContextHolder;
 import org.springframework.webflow.conversation.Conversation;
 import org.springframework.webflow.conversation.ConversationException;
@@ -29,9 +39,16 @@ import org.springframework.webflow.conversation.ConversationId;
 import org.springframework.webflow.conversation.ConversationManager;
 import org.springframework.webflow.conversation.ConversationParameters;
 import org.springframework.webflow.conversation.impl.BadlyFormattedConversationIdException;
-import org.springframework.webflow.conversation.impl.SimpleConversationId;
 import org.springframework.webflow.core.collection.SharedAttributeMap;
 
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ConversationMetrics;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ConversationMetrics.LockKind;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.JmxConversationMetrics;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.JmxReplicationMetrics;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.MicrometerConversationMetrics;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.MicrometerReplicationMetrics;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ReplicationMetrics;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ReplicationMetrics.BindKind;
 import com.github.gfernandez598.swf.util.RandomUUIDUidGenerator;
 import com.github.gfernandez598.swf.util.UidGenerator;
 
@@ -82,6 +99,117 @@ public class ReplicationOptimizedSessionBindingConversationManager implements
 	 */
 	private int lockTimeoutSeconds = 30;
 
+	/**
+	 * How the conversation container guards the access to its conversations.
+	 */
+	private ContainerLockingMode containerLockingMode = ContainerLockingMode.CONTAINER;
+
+	/**
+	 * Size, in bytes, above which serialized conversations are compressed.
+	 * Disabled (-1) by default.
+	 */
+	private int compressionThreshold = -1;
+
+	/**
+	 * Whether the conversations read back are kept serialized until first
+	 * accessed. Disabled by default.
+	 */
+	private boolean lazyActivation;
+
+	/**
+	 * Size, in bytes, from which serialized attribute values are shared among
+	 * the conversations of a session. Disabled (-1) by default.
+	 */
+	private int deduplicationThreshold = -1;
+
+	/**
+	 * How finely the state of the conversations is split among the slots of
+	 * the session.
+	 */
+	private ReplicationGranularity replicationGranularity = ReplicationGranularity.CONVERSATION;
+
+	/**
+	 * Which conversation is ended when the maximum number of conversations is
+	 * exceeded.
+	 */
+	private EvictionPolicy evictionPolicy = EvictionPolicy.FIFO;
+
+	/**
+	 * Seconds a conversation may stay idle before it is ended. Unlimited (-1)
+	 * by default.
+	 */
+	private int maxIdleSeconds = -1;
+
+	/**
+	 * Seconds a conversation may stay idle before it is paged out to the
+	 * store. Every conversation is paged out as soon as it is unlocked (-1) by
+	 * default.
+	 */
+	private int pageOutIdleSeconds = -1;
+
+	/**
+	 * Creates the locks of the conversations.
+	 */
+	private ConversationLockFactory conversationLockFactory = new ConversationLockFactory();
+
+	/**
+	 * Locks guarding the creation of the conversation containers in
+	 * {@link ContainerLockingMode#VIRTUAL_THREADS} mode, striped by session
+	 * mutex.
+	 */
+	private final Lock[] containerCreationLocks = createLocks(16);
+
+	/**
+	 * The prefix of the session keys of the conversations. When not set,
+	 * {@link #sessionKey} followed by ".conversation.".
+	 */
+	private String conversationKeyPrefix;
+
+	/**
+	 * Receives the timings of the locks. Not measured (null) by default.
+	 */
+	private ConversationMetrics conversationMetrics;
+
+	/**
+	 * One lock acquisition in how many is timed.
+	 */
+	private int conversationMetricsSampleRate = 10;
+
+	/**
+	 * Measures the locks, as configured by {@link #conversationMetrics} and
+	 * {@link #conversationMetricsSampleRate}.
+	 */
+	private LockMetrics lockMetrics = LockMetrics.NONE;
+
+	/**
+	 * Receives the serialized sizes of the values bound to the session. Not
+	 * measured (null) by default.
+	 */
+	private ReplicationMetrics replicationMetrics;
+
+	/**
+	 * One request in how many is measured.
+	 */
+	private int replicationMetricsSampleRate = 100;
+
+	/**
+	 * Measures the values bound to the session, as configured by
+	 * {@link #replicationMetrics} and {@link #replicationMetricsSampleRate}.
+	 */
+	private ReplicationMeter replicationMeter = ReplicationMeter.NONE;
+
+	/**
+	 * Where the conversations are paged out to when unlocked. The session map,
+	 * so not paged out, by default.
+	 */
+	private ConversationStore conversationStore = new SessionMapConversationStore();
+
+	/**
+	 * The pool serializing the conversations exported and imported in bulk,
+	 * null for a pool shared by every manager.
+	 */
+	private ForkJoinPool transferPool;
+
 	/**
 	 * Returns the used generator for conversation ids. Defaults to
 	 * {@link RandomUUIDUidGenerator}.
@@ -155,10 +283,491 @@ public class ReplicationOptimizedSessionBindingConversationManager implements
 		this.sessionKey = sessionKey;
 	}
 
+	/**
+	 * Returns how the conversation container guards the access to its
+	 * conversations. The default is {@link ContainerLockingMode#CONTAINER}.
+	 */
+	public ContainerLockingMode getContainerLockingMode() {
+		return containerLockingMode;
+	}
+
+	/**
+	 * Sets how the conversation container guards the access to its
+	 * conversations. Use {@link ContainerLockingMode#CONVERSATION} to let
+	 * concurrent requests on different conversations of the same session
+	 * proceed in parallel. The default is {@link ContainerLockingMode#CONTAINER}
+	 * .
+	 * 
+	 * @param containerLockingMode
+	 *            the locking mode
+	 */
+	public void setContainerLockingMode(
+			ContainerLockingMode containerLockingMode) {
+		this.containerLockingMode = containerLockingMode;
+	}
+
+	/**
+	 * Returns the size, in bytes, above which serialized conversations are
+	 * compressed. The default is -1: no compression.
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Sets the size, in bytes, above which serialized conversations are
+	 * compressed before being replicated or stored, trading a little CPU for
+	 * less replication bandwidth and session store memory. Compressed
+	 * conversations are inflated lazily, when first accessed. Set to -1 to
+	 * disable compression. The default is -1.
+	 * 
+	 * @param compressionThreshold
+	 *            the threshold in bytes
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Returns whether the conversations read back are kept serialized until
+	 * first accessed. The default is false.
+	 */
+	public boolean isLazyActivation() {
+		return lazyActivation;
+	}
+
+	/**
+	 * Sets whether the conversations read back when a session is activated
+	 * (i.e. failed over to this node or restored from the session store) are
+	 * kept serialized until first accessed, so restoring a session costs in
+	 * proportion to the conversations used afterwards rather than to all
+	 * those it holds. It costs a copy of each conversation when written.
+	 * Compressed conversations (see {@link #setCompressionThreshold(int)}) are
+	 * always read back lazily. The default is false.
+	 * 
+	 * @param lazyActivation
+	 *            whether to read the conversations back lazily
+	 */
+	public void setLazyActivation(boolean lazyActivation) {
+		this.lazyActivation = lazyActivation;
+	}
+
+	/**
+	 * Returns the size, in bytes, from which serialized attribute values are
+	 * shared among the conversations of a session. The default is -1: no
+	 * sharing.
+	 */
+	public int getDeduplicationThreshold() {
+		return deduplicationThreshold;
+	}
+
+	/**
+	 * Sets the size, in bytes, from which serialized attribute values are
+	 * shared among the conversations of a session: conversations holding an
+	 * identical value (i.e. the same snapshot of a flow forked in several
+	 * browser tabs) keep it once, in its own slot of the session, so it is
+	 * stored and replicated once. The attributes of a changed conversation are
+	 * serialized once more when it is saved to find them out. Set to -1 to not
+	 * share values. Requires {@link ReplicationGranularity#CONVERSATION}. The
+	 * default is -1.
+	 * 
+	 * @param deduplicationThreshold
+	 *            the size from which values are shared, -1 to not share them
+	 */
+	public void setDeduplicationThreshold(int deduplicationThreshold) {
+		this.deduplicationThreshold = deduplicationThreshold;
+	}
+
+	/**
+	 * Returns how finely the state of the conversations is split among the
+	 * slots of the session. The default is
+	 * {@link ReplicationGranularity#CONVERSATION}.
+	 */
+	public ReplicationGranularity getReplicationGranularity() {
+		return replicationGranularity;
+	}
+
+	/**
+	 * Sets how finely the state of the conversations is split among the slots
+	 * of the session. Use {@link ReplicationGranularity#ATTRIBUTE} to keep each
+	 * attribute in its own slot, so only the attributes written (or read) in a
+	 * request get replicated. The default is
+	 * {@link ReplicationGranularity#CONVERSATION}.
+	 * 
+	 * @param replicationGranularity
+	 *            the replication granularity
+	 */
+	public void setReplicationGranularity(
+			ReplicationGranularity replicationGranularity) {
+		this.replicationGranularity = replicationGranularity;
+	}
+
+	/**
+	 * Returns which conversation is ended when the maximum number of
+	 * conversations is exceeded. The default is {@link EvictionPolicy#FIFO}.
+	 */
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * Sets which conversation is ended when the maximum number of
+	 * conversations is exceeded. Use {@link EvictionPolicy#LRU} or
+	 * {@link EvictionPolicy#LFU} not to end conversations still in use when
+	 * raising {@link #setMaxConversations(int) maxConversations}. The default
+	 * is {@link EvictionPolicy#FIFO}.
+	 * 
+	 * @param evictionPolicy
+	 *            the eviction policy
+	 */
+	public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	/**
+	 * Returns the seconds a conversation may stay idle before it is ended. The
+	 * default is -1: no limit.
+	 */
+	public int getMaxIdleSeconds() {
+		return maxIdleSeconds;
+	}
+
+	/**
+	 * Sets the seconds a conversation may stay idle (neither looked up nor
+	 * unlocked) before it is ended, so abandoned flows leave the session, and
+	 * stop being replicated, long before the session itself expires. Idle
+	 * conversations are ended lazily, whenever the conversations of the
+	 * session are accessed, or in the background by a
+	 * {@link ConversationExpirySweeper}. A conversation held by a request is
+	 * never ended, however long the request takes: its idle time counts from
+	 * when it is unlocked. Set to 0 or less for no limit. The default is -1.
+	 * 
+	 * @param maxIdleSeconds
+	 *            the maximum idle time in seconds
+	 */
+	public void setMaxIdleSeconds(int maxIdleSeconds) {
+		this.maxIdleSeconds = maxIdleSeconds;
+	}
+
+	/**
+	 * Returns the seconds a conversation may stay idle before it is paged out
+	 * to the store. The default is -1: paged out as soon as it is unlocked.
+	 */
+	public int getPageOutIdleSeconds() {
+		return pageOutIdleSeconds;
+	}
+
+	/**
+	 * Sets the seconds a conversation may stay idle (neither looked up nor
+	 * unlocked) before it is paged out to the store (see
+	 * {@link #setConversationStore(ConversationStore)}), so the conversations
+	 * in use stay on the heap and just the idle ones are spilled, i.e. to a
+	 * {@link MappedFileConversationStore}. Idle conversations are paged out
+	 * lazily, whenever the conversations of the session are accessed, or in
+	 * the background by a {@link ConversationExpirySweeper}, and paged back in
+	 * when next accessed. Set to 0 or less to page out every conversation as
+	 * soon as it is unlocked. The default is -1. Ignored with an
+	 * {@link ExternalConversationStore}: every change is written to it.
+	 * 
+	 * @param pageOutIdleSeconds
+	 *            the idle time in seconds
+	 */
+	public void setPageOutIdleSeconds(int pageOutIdleSeconds) {
+		this.pageOutIdleSeconds = pageOutIdleSeconds;
+	}
+
+	/**
+	 * Returns the factory creating the locks of the conversations. Defaults to
+	 * {@link ConversationLockFactory}, exclusive locks waiting up to
+	 * {@link #getLockTimeoutSeconds() lockTimeoutSeconds}.
+	 */
+	public ConversationLockFactory getConversationLockFactory() {
+		return conversationLockFactory;
+	}
+
+	/**
+	 * Sets the factory creating the locks of the conversations, i.e. a
+	 * {@link FairConversationLockFactory}, a
+	 * {@link ReadWriteConversationLockFactory} or a
+	 * {@link FailFastConversationLockFactory}. Defaults to
+	 * {@link ConversationLockFactory}.
+	 * 
+	 * @param conversationLockFactory
+	 *            the lock factory
+	 */
+	public void setConversationLockFactory(
+			ConversationLockFactory conversationLockFactory) {
+		this.conversationLockFactory = conversationLockFactory;
+	}
+
+	/**
+	 * Returns the prefix of the session keys of the conversations. When not
+	 * set, the session key followed by ".conversation.".
+	 */
+	public String getConversationKeyPrefix() {
+		return conversationKeyPrefix;
+	}
+
+	/**
+	 * Sets the prefix of the session keys of the conversations. Every
+	 * conversation (and every attribute, with
+	 * {@link ReplicationGranularity#ATTRIBUTE}) is bound under a key starting
+	 * with it, so a short one (i.e. "c.") trims the replication messages. It
+	 * must be unique among the session attributes. When not set, the session
+	 * key followed by ".conversation.".
+	 * 
+	 * @param conversationKeyPrefix
+	 *            the prefix
+	 */
+	public void setConversationKeyPrefix(String conversationKeyPrefix) {
+		this.conversationKeyPrefix = conversationKeyPrefix;
+	}
+
+	/**
+	 * Returns what receives the timings of the locks, null if not measured.
+	 */
+	public ConversationMetrics getConversationMetrics() {
+		return conversationMetrics;
+	}
+
+	/**
+	 * Sets what receives the time waited for and holding the conversation
+	 * locks, the container locks and the session mutex, their queues and
+	 * their timeouts, i.e. a {@link JmxConversationMetrics} or a
+	 * {@link MicrometerConversationMetrics}. Not measured (null) by default.
+	 * 
+	 * @param conversationMetrics
+	 *            the metrics, null to not measure the locks
+	 */
+	public void setConversationMetrics(ConversationMetrics conversationMetrics) {
+		this.conversationMetrics = conversationMetrics;
+		updateLockMetrics();
+	}
+
+	/**
+	 * Returns one lock acquisition in how many is timed.
+	 */
+	public int getConversationMetricsSampleRate() {
+		return conversationMetricsSampleRate;
+	}
+
+	/**
+	 * Sets one lock acquisition in how many is timed, when measured (see
+	 * {@link #setConversationMetrics(ConversationMetrics)}). Reading the clock
+	 * is the bulk of the cost of measuring, so sampling lets it be left on in
+	 * production. Timeouts are always counted. Defaults to 10, 1 to time
+	 * every acquisition.
+	 * 
+	 * @param conversationMetricsSampleRate
+	 *            the sample rate, at least 1
+	 */
+	public void setConversationMetricsSampleRate(
+			int conversationMetricsSampleRate) {
+		Assert.isTrue(conversationMetricsSampleRate >= 1,
+				"The conversationMetricsSampleRate must be at least 1.");
+		this.conversationMetricsSampleRate = conversationMetricsSampleRate;
+		updateLockMetrics();
+	}
+
+	/**
+	 * Returns where the conversations are paged out to when unlocked.
+	 */
+	public ConversationStore getConversationStore() {
+		return conversationStore;
+	}
+
+	/**
+	 * Sets where the conversations are paged out to when unlocked, i.e. an
+	 * {@link OffHeapConversationStore}, so just a small handle of each one is
+	 * left on the heap of the session, or a {@link SessionMapConversationStore}
+	 * (the default) to keep them whole in the session. With an
+	 * {@link ExternalConversationStore} (i.e. a {@link NearCachedConversationStore}
+	 * of a key-value server) the conversations are not replicated along with
+	 * the session at all, just their keys in the store. Conversations
+	 * replicated with {@link ReplicationGranularity#ATTRIBUTE} cannot be paged
+	 * out.
+	 * 
+	 * @param conversationStore
+	 *            the store
+	 */
+	public void setConversationStore(ConversationStore conversationStore) {
+		Assert.notNull(conversationStore, "A conversationStore must be supplied.");
+		this.conversationStore = conversationStore;
+	}
+
+	/**
+	 * Returns what receives the serialized sizes of the values bound to the
+	 * session, null if not measured.
+	 */
+	public ReplicationMetrics getReplicationMetrics() {
+		return replicationMetrics;
+	}
+
+	/**
+	 * Sets what receives the serialized sizes of the container, the index,
+	 * the conversations and their attributes when bound to the session, and
+	 * the binds and bytes per request, i.e. a {@link JmxReplicationMetrics} or
+	 * a {@link MicrometerReplicationMetrics}. That is what the servlet
+	 * container replicates. Not measured (null) by default.
+	 * 
+	 * @param replicationMetrics
+	 *            the metrics, null to not measure the binds
+	 */
+	public void setReplicationMetrics(ReplicationMetrics replicationMetrics) {
+		this.replicationMetrics = replicationMetrics;
+		updateReplicationMeter();
+	}
+
+	/**
+	 * Returns one request in how many is measured.
+	 */
+	public int getReplicationMetricsSampleRate() {
+		return replicationMetricsSampleRate;
+	}
+
+	/**
+	 * Sets one request in how many is measured, when measured (see
+	 * {@link #setReplicationMetrics(ReplicationMetrics)}). Measuring takes
+	 * serializing the bound values once more, so only a few requests should
+	 * be. Defaults to 100, 1 to measure every request.
+	 * 
+	 * @param replicationMetricsSampleRate
+	 *            the sample rate, at least 1
+	 */
+	public void setReplicationMetricsSampleRate(int replicationMetricsSampleRate) {
+		Assert.isTrue(replicationMetricsSampleRate >= 1,
+				"The replicationMetricsSampleRate must be at least 1.");
+		this.replicationMetricsSampleRate = replicationMetricsSampleRate;
+		updateReplicationMeter();
+	}
+
+	private void updateReplicationMeter() {
+		replicationMeter = replicationMetrics != null ? new ReplicationMeter(
+				replicationMetrics, replicationMetricsSampleRate)
+				: ReplicationMeter.NONE;
+	}
+
+	private void updateLockMetrics() {
+		lockMetrics = conversationMetrics != null ? new LockMetrics(
+				conversationMetrics, conversationMetricsSampleRate)
+				: LockMetrics.NONE;
+	}
+
+	/**
+	 * Returns the pool serializing the conversations exported and imported in
+	 * bulk.
+	 */
+	public ForkJoinPool getTransferPool() {
+		return transferPool != null ? transferPool
+				: DefaultTransferPool.INSTANCE;
+	}
+
+	/**
+	 * Sets the pool serializing the conversations exported and imported in
+	 * bulk. Defaults to a pool shared by every manager, as many threads as
+	 * processors.
+	 * 
+	 * @param transferPool
+	 *            the pool
+	 */
+	public void setTransferPool(ForkJoinPool transferPool) {
+		this.transferPool = transferPool;
+	}
+
+	/**
+	 * Write every conversation of the current session to a stream, serializing
+	 * them in parallel (see {@link #setTransferPool(ForkJoinPool)}), i.e. to
+	 * drain this node before shutting it down. Meant for sessions not
+	 * receiving requests meanwhile. Conversations replicated with
+	 * {@link ReplicationGranularity#ATTRIBUTE} cannot be exported.
+	 * 
+	 * @param out
+	 *            the stream, left open
+	 * @return the number of conversations written
+	 * @throws IOException
+	 *             if a conversation cannot be serialized or written
+	 * @see #importConversations(InputStream)
+	 */
+	public int exportConversations(OutputStream out) throws IOException {
+		final List<ContainedConversation> conversations = getTransferContainer()
+				.getConversations();
+		ConversationTransfer.write(conversations, out, getTransferPool());
+		return conversations.size();
+	}
+
+	/**
+	 * Write every conversation of the current session to a directory, a file
+	 * each, serializing and writing them in parallel (see
+	 * {@link #setTransferPool(ForkJoinPool)}). Meant for sessions not
+	 * receiving requests meanwhile. Conversations replicated with
+	 * {@link ReplicationGranularity#ATTRIBUTE} cannot be exported.
+	 * 
+	 * @param directory
+	 *            the directory, created if needed, of this session only
+	 * @return the number of conversations written
+	 * @throws IOException
+	 *             if a conversation cannot be serialized or written
+	 * @see #importConversations(File)
+	 */
+	public int exportConversations(File directory) throws IOException {
+		final List<ContainedConversation> conversations = getTransferContainer()
+				.getConversations();
+		ConversationTransfer.write(conversations, directory, getTransferPool());
+		return conversations.size();
+	}
+
+	/**
+	 * Add to the current session the conversations written by
+	 * {@link #exportConversations(OutputStream)}, deserializing them in
+	 * parallel. Those already in the session are left as they are.
+	 * Conversations replicated with {@link ReplicationGranularity#ATTRIBUTE}
+	 * cannot be imported.
+	 * 
+	 * @param in
+	 *            the stream, left open
+	 * @return the number of conversations added
+	 * @throws IOException
+	 *             if a conversation cannot be read or deserialized
+	 */
+	public int importConversations(InputStream in) throws IOException {
+		return getTransferContainer().addConversations(
+				ConversationTransfer.read(in, getTransferPool()));
+	}
+
+	/**
+	 * Add to the current session the conversations written by
+	 * {@link #exportConversations(File)}, reading and deserializing them in
+	 * parallel. Those already in the session are left as they are.
+	 * Conversations replicated with {@link ReplicationGranularity#ATTRIBUTE}
+	 * cannot be imported.
+	 * 
+	 * @param directory
+	 *            the directory
+	 * @return the number of conversations added
+	 * @throws IOException
+	 *             if a conversation cannot be read or deserialized
+	 */
+	public int importConversations(File directory) throws IOException {
+		return getTransferContainer().addConversations(
+				ConversationTransfer.read(directory, getTransferPool()));
+	}
+
+	/**
+	 * Returns the conversation container of the current session, whose
+	 * conversations must be replicated as a whole to be exported or imported.
+	 */
+	private SessionMapConversationContainer getTransferContainer() {
+		final SessionMapConversationContainer container = getConversationContainer();
+		Assert.state(
+				container.getReplicationGranularity() == ReplicationGranularity.CONVERSATION,
+				"Conversations replicated attribute by attribute cannot be exported nor imported.");
+		return container;
+	}
+
 	public Conversation beginConversation(
 			ConversationParameters conversationParameters)
 			throws ConversationException {
-		ConversationId conversationId = new SimpleConversationId(
+		ConversationId conversationId = new UidConversationId(
 				conversationIdGenerator.generateUid());
 		if (logger.isDebugEnabled()) {
 			logger.debug("Beginning conversation " + conversationParameters
@@ -179,9 +788,10 @@ public class ReplicationOptimizedSessionBindingConversationManager implements
 	public ConversationId parseConversationId(String encodedId)
 			throws ConversationException {
 		try {
-			return new SimpleConversationId(
+			return new UidConversationId(
 					conversationIdGenerator.parseUid(encodedId));
-		} catch (NumberFormatException e) {
+		} catch (IllegalArgumentException e) {
+			// i.e. NumberFormatException
 			throw new BadlyFormattedConversationIdException(encodedId, e);
 		}
 	}
@@ -194,20 +804,104 @@ public class ReplicationOptimizedSessionBindingConversationManager implements
 	 * found.
 	 */
 	private SessionMapConversationContainer getConversationContainer() {
-		SharedAttributeMap sessionMap = ExternalContextHolder
+		SharedAttributeMap<Object> sessionMap = ExternalContextHolder
 				.getExternalContext().getSessionMap();
-		int lala;
-		
+		// reading a single session attribute needs no lock, it is only
+		// needed to create the container once: looked up again holding it
+		SessionMapConversationContainer container = (SessionMapConversationContainer) sessionMap
+				.get(sessionKey);
+		if (container != null) {
+			applyNodeSettings(container);
+			return container;
+		}
+		if (containerLockingMode == ContainerLockingMode.VIRTUAL_THREADS) {
+			// never block on the session mutex, create it holding a lock
+			// instead
+			final Lock lock = containerCreationLocks[System
+					.identityHashCode(sessionMap.getMutex())
+					& (containerCreationLocks.length - 1)];
+			final long acquiredAt = lockMetrics.lock(LockKind.SESSION, lock);
+			try {
+				return getOrCreateConversationContainer(sessionMap);
+			} finally {
+				lockMetrics.unlock(LockKind.SESSION, lock, acquiredAt);
+			}
+		}
+		final long waitStart = lockMetrics.startWait();
 		synchronized (sessionMap.getMutex()) {
-			SessionMapConversationContainer container = (SessionMapConversationContainer) sessionMap
-					.get(sessionKey);
-			if (container == null) {
-				container = new SessionMapConversationContainer(
-						maxConversations, lockTimeoutSeconds, sessionKey);
-				sessionMap.put(sessionKey, container);
+			final long acquiredAt = lockMetrics.acquired(LockKind.SESSION,
+					waitStart, -1);
+			try {
+				return getOrCreateConversationContainer(sessionMap);
+			} finally {
+				lockMetrics.released(LockKind.SESSION, acquiredAt);
 			}
-			return container;
 		}
-		
+	}
+
+	private static Lock[] createLocks(int count) {
+		final Lock[] locks = new Lock[count];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new ReentrantLock();
+		}
+		return locks;
+	}
+
+	/**
+	 * Returns the conversation container from the session, creating it if
+	 * not found. Called while holding the session mutex (or a lock striped by
+	 * it).
+	 */
+	private SessionMapConversationContainer getOrCreateConversationContainer(
+			SharedAttributeMap<Object> sessionMap) {
+		SessionMapConversationContainer container = (SessionMapConversationContainer) sessionMap
+				.get(sessionKey);
+		if (container == null) {
+			container = new SessionMapConversationContainer(maxConversations,
+					lockTimeoutSeconds, sessionKey, containerLockingMode);
+			container.setCompressionThreshold(compressionThreshold);
+			container.setLazyActivation(lazyActivation);
+			container.setReplicationGranularity(replicationGranularity);
+			container.setDeduplicationThreshold(deduplicationThreshold);
+			container.setEvictionPolicy(evictionPolicy);
+			container.setMaxIdleSeconds(maxIdleSeconds);
+			container.setPageOutIdleSeconds(pageOutIdleSeconds);
+			container.setLockFactory(conversationLockFactory);
+			container.setConversationStore(conversationStore);
+			if (conversationKeyPrefix != null) {
+				container.setConversationKeyPrefix(conversationKeyPrefix);
+			}
+			sessionMap.put(sessionKey, container);
+			replicationMeter.bound(BindKind.CONTAINER, sessionKey, null,
+					container);
+		}
+		applyNodeSettings(container);
+		return container;
+	}
+
+	/**
+	 * Hand the settings not replicated (the lock metrics, the replication
+	 * meter and the store) to a container, i.e. one replicated from another
+	 * node.
+	 */
+	private void applyNodeSettings(SessionMapConversationContainer container) {
+		if (container.getLockMetrics() != lockMetrics) {
+			container.setLockMetrics(lockMetrics);
+		}
+		if (container.getReplicationMeter() != replicationMeter) {
+			container.setReplicationMeter(replicationMeter);
+		}
+		if (container.getConversationStore() != conversationStore) {
+			container.setConversationStore(conversationStore);
+		}
+	}
+
+	/**
+	 * The pool shared by the managers not given one, created when first
+	 * used.
+	 */
+	private static class DefaultTransferPool {
+
+		static final ForkJoinPool INSTANCE = new ForkJoinPool();
 	}
 }
@@ -27,19 +27,58 @@ import org.springframework.webflow.conversation.Conversation;
 import org.springframework.webflow.conversation.ConversationId;
 import org.springframework.webflow.conversation.ConversationParameters;
 import org.springframework.webflow.conversation.NoSuchConversationException;
+import org.springframework.webflow.conversation.impl.ConversationLock;
 import org.springframework.webflow.core.collection.SharedAttributeMap;
 
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ConversationMetrics.LockKind;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ReplicationMetrics.BindKind;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
 
 /**
+ * <p>
+ * The settings and locks used to manage the conversations of a session. It is
+ * bound to the session once, when created, and never changes afterwards: the
+ * ids of the conversations are kept apart in a {@link ConversationIndex} and
+ * each conversation in its own slot of the session.
+ * </p>
+ * <p>
+ * It tells the {@link ConversationExpirySweeper}, if registered, when the
+ * session is activated in (or passivated by) a node.
+ * </p>
  * 
  * @author gfernandez598
  * 
  */
-class SessionMapConversationContainer implements Serializable {
+class SessionMapConversationContainer implements Serializable,
+		HttpSessionActivationListener {
 
-	private static final long serialVersionUID = 1899010574372604375L;
+	private static final long serialVersionUID = 6425934783120558745L;
+
+	/**
+	 * Number of locks the conversations are spread among when locking at
+	 * conversation level. Must be a power of two.
+	 */
+	private static final int LOCK_STRIPES = 16;
+
+	/**
+	 * Maximum number of session keys cached for conversation ids not caching
+	 * their own.
+	 */
+	private static final int MAX_CACHED_KEYS = 256;
 
 	/**
 	 * Maximum number of conversations in this container. -1 for unlimited.
@@ -57,11 +96,115 @@ class SessionMapConversationContainer implements Serializable {
 	private String sessionKey;
 
 	/**
-	 * The contained conversations. A list of
-	 * {@link org.springframework.webflow.conversation.impl.ContainedConversation}
-	 * objects.
+	 * How the access to the conversations is guarded.
+	 */
+	private ContainerLockingMode lockingMode;
+
+	/**
+	 * Size, in bytes, above which serialized conversations are compressed. -1
+	 * to bind the conversations to the session as they are.
+	 */
+	private int compressionThreshold = -1;
+
+	/**
+	 * Whether the conversations read back (i.e. when the session is activated)
+	 * are kept serialized until first accessed.
+	 */
+	private boolean lazyActivation;
+
+	/**
+	 * Size, in bytes, from which serialized attribute values are shared among
+	 * the conversations. -1 if not shared.
+	 */
+	private int deduplicationThreshold = -1;
+
+	/**
+	 * How finely the state of the conversations is split among the slots of
+	 * the session.
+	 */
+	private ReplicationGranularity replicationGranularity = ReplicationGranularity.CONVERSATION;
+
+	/**
+	 * Which conversation is ended when the maximum number of conversations is
+	 * exceeded.
+	 */
+	private EvictionPolicy evictionPolicy = EvictionPolicy.FIFO;
+
+	/**
+	 * Seconds a conversation may stay idle before it is ended. 0 or less for
+	 * no limit.
+	 */
+	private int maxIdleSeconds = -1;
+
+	/**
+	 * Seconds a conversation may stay idle before it is paged out to the
+	 * store. 0 or less to page out every conversation as soon as it is
+	 * unlocked.
+	 */
+	private int pageOutIdleSeconds = -1;
+
+	/**
+	 * When the idle conversations are next looked for to be paged out, in
+	 * milliseconds.
+	 */
+	private transient volatile long nextIdlePageOut;
+
+	/**
+	 * Creates the locks of the conversations.
+	 */
+	private ConversationLockFactory lockFactory = new ConversationLockFactory();
+
+	/**
+	 * The locks guarding the conversations: just one for the whole container
+	 * or a set of stripes, depending on the locking mode.
+	 */
+	private transient Lock[] locks;
+
+	/**
+	 * The lock guarding the eviction of exceeding conversations.
+	 */
+	private transient Lock evictionLock;
+
+	/**
+	 * The lock guarding the sharing of attribute values.
+	 */
+	private transient Lock sharedValueLock;
+
+	/**
+	 * The lock replacing the session mutex, in
+	 * {@link ContainerLockingMode#VIRTUAL_THREADS} mode. Null otherwise.
+	 */
+	private transient Lock sessionLock;
+
+	/**
+	 * The prefix of the session keys of the conversations.
+	 */
+	private String conversationKeyPrefix;
+
+	/**
+	 * The session keys of the conversations whose ids do not cache their own
+	 * (see {@link UidConversationId#getSessionKey(String)}).
+	 */
+	private transient ConcurrentMap<ConversationId, String> conversationKeys;
+
+	/**
+	 * Measures the locks. Not replicated: set again by the conversation
+	 * manager on each node.
+	 */
+	private transient volatile LockMetrics lockMetrics = LockMetrics.NONE;
+
+	/**
+	 * Measures the values bound to the session. Not replicated: set again by
+	 * the conversation manager on each node.
+	 */
+	private transient volatile ReplicationMeter replicationMeter = ReplicationMeter.NONE;
+
+	/**
+	 * Where the conversations are paged out to when unlocked, unless it is
+	 * the session map. Not replicated: set again by the conversation manager
+	 * on each node.
 	 */
-	private ConcurrentLinkedQueue<ConversationId> conversations;
+	private transient volatile ConversationStore conversationStore = new SessionMapConversationStore();
 
 	/**
 	 * Create a new conversation container.
@@ -76,11 +219,34 @@ class SessionMapConversationContainer implements Serializable {
 	 */
 	public SessionMapConversationContainer(int maxConversations,
 			int lockTimeout, String sessionKey) {
+		this(maxConversations, lockTimeout, sessionKey,
+				ContainerLockingMode.CONTAINER);
+	}
+
+	/**
+	 * Create a new conversation container.
+	 * 
+	 * @param maxConversations
+	 *            the maximum number of allowed concurrent conversations, -1 for
+	 *            unlimited
+	 * @param lockTimeout
+	 *            lock acquisition timeout of conversation in seconds
+	 * @param sessionKey
+	 *            the key of this conversation container in the session
+	 * @param lockingMode
+	 *            how the access to the conversations is guarded
+	 */
+	public SessionMapConversationContainer(int maxConversations,
+			int lockTimeout, String sessionKey, ContainerLockingMode lockingMode) {
 		Assert.hasText(sessionKey, "A sessionKey must be supplied.");
+		Assert.notNull(lockingMode, "A lockingMode must be supplied.");
 		this.maxConversations = maxConversations;
 		this.lockTimeoutSeconds = lockTimeout;
 		this.sessionKey = sessionKey;
-		this.conversations = new ConcurrentLinkedQueue<ConversationId>();
+		this.lockingMode = lockingMode;
+		createLocks();
+		conversationKeyPrefix = sessionKey + ".conversation.";
+		conversationKeys = new ConcurrentHashMap<ConversationId, String>();
 	}
 
 	/**
@@ -99,12 +265,356 @@ class SessionMapConversationContainer implements Serializable {
 		return sessionKey;
 	}
 
+	/**
+	 * Returns how the access to the conversations is guarded. For package
+	 * level use only.
+	 */
+	ContainerLockingMode getLockingMode() {
+		return lockingMode;
+	}
+
+	/**
+	 * Returns the size, in bytes, above which serialized conversations are
+	 * compressed. -1 if disabled.
+	 */
+	int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Sets the size, in bytes, above which serialized conversations are
+	 * compressed. -1 to disable compression. For package level use only.
+	 */
+	void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Returns whether the conversations read back are kept serialized until
+	 * first accessed.
+	 */
+	boolean isLazyActivation() {
+		return lazyActivation;
+	}
+
+	/**
+	 * Sets whether the conversations read back are kept serialized until
+	 * first accessed. For package level use only.
+	 */
+	void setLazyActivation(boolean lazyActivation) {
+		this.lazyActivation = lazyActivation;
+	}
+
+	/**
+	 * Returns the size, in bytes, from which serialized attribute values are
+	 * shared among the conversations. -1 if not shared.
+	 */
+	int getDeduplicationThreshold() {
+		return deduplicationThreshold;
+	}
+
+	/**
+	 * Sets the size, in bytes, from which serialized attribute values are
+	 * shared among the conversations. -1 to not share them. Only conversations
+	 * replicated as a whole can share values. For package level use only.
+	 */
+	void setDeduplicationThreshold(int deduplicationThreshold) {
+		Assert.isTrue(deduplicationThreshold < 0
+				|| replicationGranularity == ReplicationGranularity.CONVERSATION,
+				"Conversations replicated attribute by attribute cannot share values.");
+		this.deduplicationThreshold = deduplicationThreshold;
+	}
+
+	/**
+	 * Returns how finely the state of the conversations is split among the
+	 * slots of the session.
+	 */
+	ReplicationGranularity getReplicationGranularity() {
+		return replicationGranularity;
+	}
+
+	/**
+	 * Sets how finely the state of the conversations is split among the slots
+	 * of the session. For package level use only.
+	 */
+	void setReplicationGranularity(
+			ReplicationGranularity replicationGranularity) {
+		Assert.notNull(replicationGranularity,
+				"A replicationGranularity must be supplied.");
+		this.replicationGranularity = replicationGranularity;
+	}
+
+	/**
+	 * Returns which conversation is ended when the maximum number of
+	 * conversations is exceeded.
+	 */
+	EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * Sets which conversation is ended when the maximum number of
+	 * conversations is exceeded. For package level use only.
+	 */
+	void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+		Assert.notNull(evictionPolicy, "An evictionPolicy must be supplied.");
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	/**
+	 * Returns the seconds a conversation may stay idle before it is ended, 0
+	 * or less for no limit.
+	 */
+	int getMaxIdleSeconds() {
+		return maxIdleSeconds;
+	}
+
+	/**
+	 * Sets the seconds a conversation may stay idle before it is ended, 0 or
+	 * less for no limit. For package level use only.
+	 */
+	void setMaxIdleSeconds(int maxIdleSeconds) {
+		this.maxIdleSeconds = maxIdleSeconds;
+	}
+
+	/**
+	 * Returns the seconds a conversation may stay idle before it is paged out,
+	 * 0 or less to page out every conversation as soon as it is unlocked.
+	 */
+	int getPageOutIdleSeconds() {
+		return pageOutIdleSeconds;
+	}
+
+	/**
+	 * Sets the seconds a conversation may stay idle before it is paged out, 0
+	 * or less to page out every conversation as soon as it is unlocked. For
+	 * package level use only.
+	 */
+	void setPageOutIdleSeconds(int pageOutIdleSeconds) {
+		this.pageOutIdleSeconds = pageOutIdleSeconds;
+	}
+
+	/**
+	 * Returns the factory creating the locks of the conversations.
+	 */
+	ConversationLockFactory getLockFactory() {
+		return lockFactory;
+	}
+
+	/**
+	 * Sets the factory creating the locks of the conversations. For package
+	 * level use only.
+	 */
+	void setLockFactory(ConversationLockFactory lockFactory) {
+		Assert.notNull(lockFactory, "A lockFactory must be supplied.");
+		this.lockFactory = lockFactory;
+	}
+
+	/**
+	 * Returns what measures the locks.
+	 */
+	LockMetrics getLockMetrics() {
+		return lockMetrics;
+	}
+
+	/**
+	 * Sets what measures the locks, {@link LockMetrics#NONE} to not measure
+	 * them. For package level use only.
+	 */
+	void setLockMetrics(LockMetrics lockMetrics) {
+		Assert.notNull(lockMetrics, "A lockMetrics must be supplied.");
+		this.lockMetrics = lockMetrics;
+	}
+
+	/**
+	 * Returns what measures the values bound to the session.
+	 */
+	ReplicationMeter getReplicationMeter() {
+		return replicationMeter;
+	}
+
+	/**
+	 * Sets what measures the values bound to the session,
+	 * {@link ReplicationMeter#NONE} to not measure them. For package level use
+	 * only.
+	 */
+	void setReplicationMeter(ReplicationMeter replicationMeter) {
+		Assert.notNull(replicationMeter, "A replicationMeter must be supplied.");
+		this.replicationMeter = replicationMeter;
+	}
+
+	/**
+	 * Returns where the conversations are paged out to.
+	 */
+	ConversationStore getConversationStore() {
+		return conversationStore;
+	}
+
+	/**
+	 * Sets where the conversations are paged out to when unlocked, a
+	 * {@link SessionMapConversationStore} to keep them whole in the session.
+	 * Only conversations replicated as a whole can be paged out. For package
+	 * level use only.
+	 */
+	void setConversationStore(ConversationStore conversationStore) {
+		Assert.notNull(conversationStore, "A conversationStore must be supplied.");
+		Assert.isTrue(conversationStore instanceof SessionMapConversationStore
+				|| replicationGranularity == ReplicationGranularity.CONVERSATION,
+				"Conversations replicated attribute by attribute cannot be paged out.");
+		this.conversationStore = conversationStore;
+	}
+
+	/**
+	 * Returns whether the conversations are paged out when unlocked. Package
+	 * use only.
+	 */
+	boolean pagesOut() {
+		return !(conversationStore instanceof SessionMapConversationStore);
+	}
+
+	/**
+	 * Returns whether only the idle conversations are paged out, rather than
+	 * every one as soon as it is unlocked. Package use only.
+	 */
+	boolean pagesOutIdleOnly() {
+		return pageOutIdleSeconds > 0 && !sharesState();
+	}
+
+	/**
+	 * Returns whether the conversations are kept in a store shared by the
+	 * nodes rather than replicated along with the session, so the session just
+	 * holds the index and a handle of each one. Package use only.
+	 */
+	boolean sharesState() {
+		return conversationStore instanceof ExternalConversationStore;
+	}
+
+	/**
+	 * Returns the key to store the state of a conversation under: its session
+	 * key, or, if the store is shared by the nodes, a new key every time so
+	 * the states cached by the nodes are never stale. Package use only.
+	 */
+	String getStoreKey(ConversationId id) {
+		final String conversationKey = getConversationKey(id);
+		if (!sharesState()) {
+			return conversationKey;
+		}
+		return conversationKey
+				+ "."
+				+ Long.toString(
+						ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE,
+						Character.MAX_RADIX);
+	}
+
+	/**
+	 * Store the state of a conversation, in the batch of the current request
+	 * if the store is an external one, or holding the session mutex (or lock)
+	 * if the session itself. Package use only.
+	 * 
+	 * @return whether stored
+	 */
+	boolean storeState(ConversationStore store, String key, byte[] state) {
+		if (store instanceof SessionMapConversationStore) {
+			writeSessionAttribute(SessionMapConversationStore.getStateKey(key),
+					state);
+			return true;
+		}
+		if (store instanceof ExternalConversationStore) {
+			ExternalStoreBatch.store((ExternalConversationStore) store, key,
+					state);
+			return true;
+		}
+		return store.store(key, state);
+	}
+
+	/**
+	 * Remove the state of a conversation, in the batch of the current request
+	 * if the store is an external one. Package use only.
+	 */
+	void removeState(ConversationStore store, String key) {
+		if (store instanceof SessionMapConversationStore) {
+			writeSessionAttribute(SessionMapConversationStore.getStateKey(key),
+					null);
+		} else if (store instanceof ExternalConversationStore) {
+			ExternalStoreBatch.remove((ExternalConversationStore) store, key);
+		} else {
+			store.remove(key);
+		}
+		final StoredConversationsReleaser releaser = getReleaser(false);
+		if (releaser != null) {
+			releaser.removed(key);
+		}
+	}
+
+	/**
+	 * Send the states stored and removed by the current request to the store,
+	 * in a single round trip, if it is an external one. Package use only.
+	 */
+	void flushState() {
+		final ConversationStore store = conversationStore;
+		if (store instanceof ExternalConversationStore) {
+			ExternalStoreBatch.flush((ExternalConversationStore) store);
+		}
+	}
+
+	/**
+	 * The state of a conversation has been paged out, to be removed from the
+	 * store once the session ends. Package use only.
+	 */
+	void stateStored(String key) {
+		getReleaser(true).stored(key);
+	}
+
+	/**
+	 * Report the values bound to the session by the current request, which
+	 * is done with its conversation. Package use only.
+	 */
+	void requestCompleted() {
+		flushState();
+		replicationMeter.requestCompleted();
+	}
+
+	/**
+	 * Create the lock of a conversation, instrumented if the locks are
+	 * measured. For package level use only.
+	 * 
+	 * @param lockTimeoutSeconds
+	 *            the lock timeout in seconds
+	 * @return the lock
+	 */
+	ConversationLock createConversationLock(int lockTimeoutSeconds) {
+		final ConversationLock lock = lockFactory
+				.createConversationLock(lockTimeoutSeconds);
+		final LockMetrics currentMetrics = lockMetrics;
+		return currentMetrics.getMetrics() != null ? new InstrumentedConversationLock(
+				lock, currentMetrics) : lock;
+	}
+
+	/**
+	 * Returns the prefix of the session keys of the conversations. For package
+	 * level use only.
+	 */
+	String getConversationKeyPrefix() {
+		return conversationKeyPrefix;
+	}
+
+	/**
+	 * Sets the prefix of the session keys of the conversations. For package
+	 * level use only.
+	 */
+	void setConversationKeyPrefix(String conversationKeyPrefix) {
+		Assert.hasText(conversationKeyPrefix,
+				"A conversationKeyPrefix must be supplied.");
+		this.conversationKeyPrefix = conversationKeyPrefix;
+		conversationKeys.clear();
+	}
+
 	/**
 	 * Returns the current size of the conversation container: the number of
 	 * conversations contained within it.
 	 */
 	public int size() {
-		return conversations.size();
+		return getIndex().size();
 	}
 
 	/**
@@ -117,38 +627,42 @@ class SessionMapConversationContainer implements Serializable {
 	 *            descriptive parameters
 	 * @return the created conversation
 	 */
-	public synchronized Conversation createAndAddConversation(
-			ConversationId id, ConversationParameters parameters) {
-		// add the conversation to the session map also
-		ContainedConversation conversation;
-		final SharedAttributeMap sessionMap = ExternalContextHolder
-				.getExternalContext().getSessionMap();
-		synchronized (sessionMap.getMutex()) {
-			// add the new conversation to the queue
-			conversation = (ContainedConversation) sessionMap
-					.get(getConversationKey(id));
-			if (conversation == null) {
-				conversations.add(id);
-				conversation = new ContainedConversation(this, id);
-				conversation.putAttribute("name", parameters.getName());
-				conversation.putAttribute("caption", parameters.getCaption());
-				conversation.putAttribute("description",
-						parameters.getDescription());
-				sessionMap.put(getConversationKey(id), conversation);
+	public Conversation createAndAddConversation(ConversationId id,
+			ConversationParameters parameters) {
+		beginSessionWrites();
+		try {
+			purgeIdle();
+			pageOutIdle();
+			final String conversationKey = getConversationKey(id);
+			// add the conversation to the session map also
+			ContainedConversation conversation;
+			final Lock lock = getLock(id);
+			final long acquiredAt = lockContainer(lock);
+			try {
+				// add the new conversation to the queue
+				conversation = getSessionConversation(conversationKey);
+				if (conversation == null) {
+					getIndex().add(id);
+					conversation = replicationGranularity == ReplicationGranularity.ATTRIBUTE ? new DeltaReplicatedConversation(
+							this, id) : new ContainedConversation(this, id);
+					conversation.putAttribute("name", parameters.getName());
+					conversation.putAttribute("caption",
+							parameters.getCaption());
+					conversation.putAttribute("description",
+							parameters.getDescription());
+					putSessionConversation(conversationKey, conversation);
+				}
+			} finally {
+				unlockContainer(lock, acquiredAt);
 			}
-		}
 
-		if (maxExceeded()) {
-			// end oldest conversation by getting the first one out of the FIFO
-			// queue
-			final ConversationId oldestId = conversations.poll();
-			final Conversation conver = getConversation(oldestId);
-			if (conver != null) {
-				conver.end();
-				removeConversation(oldestId);
-			}
+			// the lock of the new conversation is released first, evicting
+			// may need the lock of another one
+			evictExceeding(id);
+			return conversation;
+		} finally {
+			endSessionWrites();
 		}
-		return conversation;
 	}
 
 	/**
@@ -160,16 +674,33 @@ class SessionMapConversationContainer implements Serializable {
 	 * @throws org.springframework.webflow.conversation.NoSuchConversationException
 	 *             if the conversation cannot be found
 	 */
-	public synchronized Conversation getConversation(ConversationId id)
+	public Conversation getConversation(ConversationId id)
 			throws NoSuchConversationException {
-		SharedAttributeMap sessionMap = ExternalContextHolder
-				.getExternalContext().getSessionMap();
-		synchronized (sessionMap.getMutex()) {
-			ContainedConversation conversation = (ContainedConversation) sessionMap
-					.get(getConversationKey(id));
-			if (conversation != null) {
-				return conversation;
+		beginSessionWrites();
+		try {
+			purgeIdle();
+		} finally {
+			endSessionWrites();
+		}
+		final String conversationKey = getConversationKey(id);
+		ContainedConversation conversation;
+		if (lockingMode == ContainerLockingMode.CONTAINER) {
+			final Lock lock = getLock(id);
+			final long acquiredAt = lockContainer(lock);
+			try {
+				conversation = getSessionConversation(conversationKey);
+			} finally {
+				unlockContainer(lock, acquiredAt);
 			}
+		} else {
+			// reading a single session attribute needs no lock
+			conversation = getSessionConversation(conversationKey);
+		}
+		if (conversation != null) {
+			recordAccess(id);
+			// once accessed, not to be paged out itself
+			pageOutIdle();
+			return conversation;
 		}
 
 		throw new NoSuchConversationException(id);
@@ -180,31 +711,298 @@ class SessionMapConversationContainer implements Serializable {
 	 * replication
 	 * 
 	 * @param id
+	 * @param changes
+	 *            the attributes written since last saved, to save just them,
+	 *            or null to save the whole conversation
 	 */
-	public synchronized void saveConversation(ConversationId id) {
-		final SharedAttributeMap sessionMap = ExternalContextHolder
-				.getExternalContext().getSessionMap();
-		// remove from the list of conversations
-		synchronized (sessionMap.getMutex()) {
-			final ContainedConversation conversation = (ContainedConversation) sessionMap
-					.get(getConversationKey(id));
+	public void saveConversation(ConversationId id,
+			Map<Object, Object> changes) {
+		final String conversationKey = getConversationKey(id);
+		final Lock lock = getLock(id);
+		final long acquiredAt = lockContainer(lock);
+		try {
+			final ContainedConversation conversation = getSessionConversation(conversationKey);
+			// do not bring back a conversation removed in the meantime
 			if (conversation != null) {
-				sessionMap.put(getConversationKey(id), conversation);
+				if (changes == null) {
+					putSessionConversation(conversationKey, conversation);
+				} else {
+					saveAttributes(conversationKey, conversation, changes);
+				}
+			}
+		} finally {
+			unlockContainer(lock, acquiredAt);
+		}
+	}
+
+	/**
+	 * Save the changed attributes of a conversation in their own slots. The
+	 * conversation itself, which holds the names of the attributes, is saved
+	 * only if an attribute has been added or removed.
+	 */
+	private void saveAttributes(String conversationKey,
+			ContainedConversation conversation, Map<Object, Object> changes) {
+		boolean namesChanged = false;
+		for (Map.Entry<Object, Object> change : changes.entrySet()) {
+			final String attributeKey = DeltaReplicatedConversation
+					.getAttributeKey(conversationKey, change.getKey());
+			if (change.getValue() == DeltaReplicatedConversation.REMOVED) {
+				removeSessionAttribute(attributeKey);
+				namesChanged = true;
+			} else {
+				if (getSessionAttribute(attributeKey) == null) {
+					namesChanged = true;
+				}
+				putSessionAttribute(attributeKey, change.getValue(),
+						BindKind.ATTRIBUTE, conversation.getId());
 			}
 		}
+		if (namesChanged) {
+			putSessionConversation(conversationKey, conversation);
+		}
+	}
+
+	/**
+	 * Returns the value held in the slot of an attribute of a conversation.
+	 * Package use only.
+	 */
+	Object getAttributeSlot(String attributeKey) {
+		return getSessionAttribute(attributeKey);
+	}
+
+	/**
+	 * Save the index of conversations back to the session, if it changed since
+	 * last saved. We need to do this for replication
+	 */
+	void saveIndex() {
+		final ConversationIndex index = getIndex();
+		if (index.clearDirty()) {
+			final String indexKey = getIndexKey();
+			putSessionAttribute(indexKey, index, BindKind.INDEX, null);
+		}
+	}
+
+	/**
+	 * Record an access to the identified conversation, for the eviction
+	 * policy. Package use only.
+	 */
+	void recordAccess(ConversationId id) {
+		if (evictionPolicy != EvictionPolicy.FIFO || maxIdleSeconds > 0
+				|| pageOutIdleSeconds > 0) {
+			getIndex().access(id);
+		}
+	}
+
+	/**
+	 * End the conversations idle for longer than allowed, if limited, but
+	 * those held by a request: their idle time counts from when they are
+	 * unlocked. Called lazily on every lookup and creation, and by a
+	 * {@link ConversationExpirySweeper} if configured.
+	 */
+	void purgeIdle() {
+		if (maxIdleSeconds <= 0) {
+			return;
+		}
+		final List<ConversationId> idleIds = getIndex().getIdle(
+				System.currentTimeMillis() - maxIdleSeconds * 1000L);
+		if (idleIds.isEmpty()) {
+			return;
+		}
+		beginSessionWrites();
+		try {
+			for (ConversationId idleId : idleIds) {
+				final ContainedConversation conversation = getSessionConversation(getConversationKey(idleId));
+				if (conversation == null) {
+					removeConversation(idleId);
+				} else if (conversation.claimIdle()) {
+					try {
+						removeConversation(idleId);
+					} finally {
+						conversation.releaseIdle();
+					}
+				}
+			}
+			saveIndex();
+		} finally {
+			endSessionWrites();
+		}
+	}
+
+	/**
+	 * Page out the conversations idle for longer than allowed, if only those
+	 * are paged out. Called lazily on every lookup and creation, but looking
+	 * for them at most once a second, and by a
+	 * {@link ConversationExpirySweeper} if configured. A paged out
+	 * conversation is left in the session as a small handle, paged back in
+	 * when next accessed.
+	 */
+	void pageOutIdle() {
+		if (pageOutIdleSeconds <= 0 || !pagesOut()) {
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		if (now < nextIdlePageOut) {
+			return;
+		}
+		nextIdlePageOut = now + 1000L;
+		final List<ConversationId> idleIds = getIndex().getIdle(
+				now - pageOutIdleSeconds * 1000L);
+		for (ConversationId idleId : idleIds) {
+			final Object value = getSessionAttribute(getConversationKey(idleId));
+			if (value instanceof ContainedConversation) {
+				((ContainedConversation) value).pageOutIdle(this);
+			} else if (value instanceof ConversationHolder
+					&& ((ConversationHolder) value).isInflated()) {
+				// those still serialized take no room
+				((ConversationHolder) value).getConversation()
+						.pageOutIdle(this);
+			}
+		}
+	}
+
+	/**
+	 * Add a reference to an attribute value shared among the conversations,
+	 * binding it to its own slot of the session if it is the first one.
+	 * Package use only.
+	 * 
+	 * @param hash
+	 *            the hash of the serialized value
+	 * @param value
+	 *            the serialized value
+	 */
+	void shareValue(String hash, byte[] value) {
+		final long acquiredAt = lockContainer(sharedValueLock);
+		try {
+			if (getIndex().acquireSharedValue(hash)) {
+				// not buffered, the count of references is not either
+				writeSessionAttribute(getSharedValueKey(hash), value);
+			}
+		} finally {
+			unlockContainer(sharedValueLock, acquiredAt);
+		}
+	}
+
+	/**
+	 * Remove a reference to an attribute value shared among the
+	 * conversations, removing it from the session if it is the last one.
+	 * Package use only.
+	 * 
+	 * @param hash
+	 *            the hash of the serialized value
+	 */
+	void releaseValue(String hash) {
+		final long acquiredAt = lockContainer(sharedValueLock);
+		try {
+			if (getIndex().releaseSharedValue(hash)) {
+				writeSessionAttribute(getSharedValueKey(hash), null);
+			}
+		} finally {
+			unlockContainer(sharedValueLock, acquiredAt);
+		}
+	}
+
+	/**
+	 * Returns an attribute value shared among the conversations, serialized.
+	 * Package use only.
+	 * 
+	 * @param hash
+	 *            the hash of the serialized value
+	 * @return the serialized value, null if not found
+	 */
+	byte[] getSharedValue(String hash) {
+		return (byte[]) getSessionMap().get(getSharedValueKey(hash));
+	}
+
+	/**
+	 * Returns the number of attribute values shared among the conversations.
+	 * Package use only.
+	 */
+	int getSharedValueCount() {
+		return getIndex().getSharedValueCount();
+	}
+
+	private String getSharedValueKey(String hash) {
+		return getSessionKey() + ".shared." + hash;
+	}
+
+	/**
+	 * Returns the conversations of this container, as they are, for a bulk
+	 * export. Package use only.
+	 */
+	List<ContainedConversation> getConversations() {
+		final List<ConversationId> ids = getIndex().getIds();
+		final List<ContainedConversation> conversations = new ArrayList<ContainedConversation>(
+				ids.size());
+		for (ConversationId id : ids) {
+			final ContainedConversation conversation = getSessionConversation(getConversationKey(id));
+			if (conversation != null) {
+				conversations.add(conversation);
+			}
+		}
+		return conversations;
+	}
+
+	/**
+	 * Add the conversations read back by a bulk import, but those already
+	 * contained, evicting the exceeding ones. Package use only.
+	 * 
+	 * @return the number of conversations added
+	 */
+	int addConversations(List<ContainedConversation> conversations) {
+		int added = 0;
+		beginSessionWrites();
+		try {
+			for (ContainedConversation conversation : conversations) {
+				final ConversationId id = conversation.getId();
+				final String conversationKey = getConversationKey(id);
+				final Lock lock = getLock(id);
+				final long acquiredAt = lockContainer(lock);
+				try {
+					if (getSessionConversation(conversationKey) == null) {
+						getIndex().add(id);
+						putSessionConversation(conversationKey, conversation);
+						added++;
+					}
+				} finally {
+					unlockContainer(lock, acquiredAt);
+				}
+			}
+			evictExceeding(null);
+			saveIndex();
+		} finally {
+			endSessionWrites();
+		}
+		return added;
 	}
 
 	/**
 	 * Remove identified conversation from this container.
 	 */
-	public synchronized void removeConversation(ConversationId id) {
-		SharedAttributeMap sessionMap = ExternalContextHolder
-				.getExternalContext().getSessionMap();
-		// remove from the list of conversations
-		synchronized (sessionMap.getMutex()) {
-			conversations.remove(id);
-			sessionMap.remove(getConversationKey(id));
+	public void removeConversation(ConversationId id) {
+		final String conversationKey = getConversationKey(id);
+		final Lock lock = getLock(id);
+		beginSessionWrites();
+		final long acquiredAt = lockContainer(lock);
+		try {
+			// remove from the list of conversations
+			getIndex().remove(id);
+			final ContainedConversation conversation = getSessionConversation(conversationKey);
+			if (conversation instanceof DeltaReplicatedConversation) {
+				for (Object name : ((DeltaReplicatedConversation) conversation)
+						.getAttributeNames()) {
+					removeSessionAttribute(DeltaReplicatedConversation
+							.getAttributeKey(conversationKey, name));
+				}
+			}
+			if (conversation != null) {
+				conversation.removed(this);
+			}
+			removeSessionAttribute(conversationKey);
+		} finally {
+			unlockContainer(lock, acquiredAt);
+			endSessionWrites();
 		}
+		conversationKeys.remove(id);
 	}
 
 	/**
@@ -212,7 +1010,30 @@ class SessionMapConversationContainer implements Serializable {
 	 * been exceeded?
 	 */
 	protected boolean maxExceeded() {
-		return maxConversations > 0 && conversations.size() > maxConversations;
+		return maxConversations > 0 && size() > maxConversations;
+	}
+
+	/**
+	 * End the conversations first in eviction order, by getting them out of
+	 * the index, while the maximum number of conversations is exceeded.
+	 * 
+	 * @param spared
+	 *            the id of the conversation just created, never evicted, null
+	 *            if none
+	 */
+	private void evictExceeding(ConversationId spared) {
+		final long acquiredAt = lockContainer(evictionLock);
+		try {
+			while (maxExceeded()) {
+				final ConversationId evictedId = getIndex().poll(spared);
+				if (evictedId == null) {
+					break;
+				}
+				removeConversation(evictedId);
+			}
+		} finally {
+			unlockContainer(evictionLock, acquiredAt);
+		}
 	}
 
 	/**
@@ -222,7 +1043,368 @@ class SessionMapConversationContainer implements Serializable {
 	 * @return the key
 	 */
 	String getConversationKey(ConversationId id) {
+		if (id instanceof UidConversationId) {
+			return ((UidConversationId) id).getSessionKey(conversationKeyPrefix);
+		}
 		Assert.notNull(id, "conversationId is required.");
-		return getSessionKey() + ".conversation." + id;
+		String key = conversationKeys.get(id);
+		if (key == null) {
+			if (conversationKeys.size() >= MAX_CACHED_KEYS) {
+				// ids of ended conversations never looked up again
+				conversationKeys.clear();
+			}
+			key = conversationKeyPrefix + id;
+			conversationKeys.put(id, key);
+		}
+		return key;
+	}
+
+	/**
+	 * Get the session key of the index of conversations. Package use only.
+	 * 
+	 * @return the key
+	 */
+	String getIndexKey() {
+		return getSessionKey() + ".index";
+	}
+
+	/**
+	 * Returns the index of the conversations of the session, creating it if
+	 * not found. It is looked up every time, rather than referenced, since
+	 * replication may replace it in the session.
+	 */
+	ConversationIndex getIndex() {
+		final String indexKey = getIndexKey();
+		final SharedAttributeMap<Object> sessionMap = getSessionMap();
+		ConversationIndex index = (ConversationIndex) sessionMap.get(indexKey);
+		if (index == null) {
+			final LockMetrics currentMetrics = lockMetrics;
+			if (sessionLock != null) {
+				final long acquiredAt = currentMetrics.lock(LockKind.SESSION,
+						sessionLock);
+				try {
+					index = createIndex(sessionMap, indexKey);
+				} finally {
+					currentMetrics.unlock(LockKind.SESSION, sessionLock,
+							acquiredAt);
+				}
+			} else {
+				final long waitStart = currentMetrics.startWait();
+				synchronized (sessionMap.getMutex()) {
+					final long acquiredAt = currentMetrics.acquired(
+							LockKind.SESSION, waitStart, -1);
+					try {
+						index = createIndex(sessionMap, indexKey);
+					} finally {
+						currentMetrics.released(LockKind.SESSION, acquiredAt);
+					}
+				}
+			}
+		}
+		return index;
+	}
+
+	// internal helpers
+
+	/**
+	 * Create the index of conversations unless already there. Called while
+	 * holding the session mutex (or lock).
+	 */
+	private ConversationIndex createIndex(SharedAttributeMap<Object> sessionMap,
+			String indexKey) {
+		ConversationIndex index = (ConversationIndex) sessionMap.get(indexKey);
+		if (index == null) {
+			index = new ConversationIndex(evictionPolicy);
+			sessionMap.put(indexKey, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the releaser of the states paged out by this node, binding a new
+	 * one if asked to.
+	 * 
+	 * @return the releaser, null if not found and not asked to create it
+	 */
+	private StoredConversationsReleaser getReleaser(boolean create) {
+		final String releaserKey = getReleaserKey();
+		final SharedAttributeMap<Object> sessionMap = getSessionMap();
+		StoredConversationsReleaser releaser = (StoredConversationsReleaser) sessionMap
+				.get(releaserKey);
+		// a replicated one knows nothing of this node
+		if ((releaser == null || releaser.getStore() == null) && create) {
+			if (sessionLock != null) {
+				sessionLock.lock();
+				try {
+					releaser = createReleaser(sessionMap, releaserKey);
+				} finally {
+					sessionLock.unlock();
+				}
+			} else {
+				synchronized (sessionMap.getMutex()) {
+					releaser = createReleaser(sessionMap, releaserKey);
+				}
+			}
+		}
+		return releaser;
+	}
+
+	/**
+	 * Create the releaser of the states paged out by this node unless already
+	 * there. Called while holding the session mutex (or lock).
+	 */
+	private StoredConversationsReleaser createReleaser(
+			SharedAttributeMap<Object> sessionMap, String releaserKey) {
+		StoredConversationsReleaser releaser = (StoredConversationsReleaser) sessionMap
+				.get(releaserKey);
+		if (releaser == null || releaser.getStore() == null) {
+			releaser = new StoredConversationsReleaser(conversationStore);
+			sessionMap.put(releaserKey, releaser);
+		}
+		return releaser;
+	}
+
+	private String getReleaserKey() {
+		return getSessionKey() + ".storedConversations";
+	}
+
+	private SharedAttributeMap<Object> getSessionMap() {
+		return ExternalContextHolder.getExternalContext().getSessionMap();
+	}
+
+	/**
+	 * Returns the conversation held in the given slot of the session, inflating
+	 * it if needed.
+	 * 
+	 * @return the conversation or null if not found
+	 */
+	private ContainedConversation getSessionConversation(String conversationKey) {
+		final Object value = getSessionAttribute(conversationKey);
+		if (value instanceof ConversationHolder) {
+			return ((ConversationHolder) value).getConversation();
+		}
+		return (ContainedConversation) value;
+	}
+
+	/**
+	 * Put the conversation in its slot of the session, wrapped to be
+	 * compressed if compression is enabled or to be read back lazily.
+	 */
+	private void putSessionConversation(String conversationKey,
+			ContainedConversation conversation) {
+		final Object value = compressionThreshold < 0 && !lazyActivation ? conversation
+				: new ConversationHolder(conversation, compressionThreshold);
+		putSessionAttribute(conversationKey, value, BindKind.CONVERSATION,
+				conversation.getId());
+	}
+
+	/**
+	 * Start buffering the writes to the session, until the matching
+	 * {@link #endSessionWrites()}, so those of a whole operation are written
+	 * at once. Package use only.
+	 */
+	void beginSessionWrites() {
+		SessionWriteBuffer.open(getSessionKey());
+	}
+
+	/**
+	 * Stop buffering the writes to the session, writing them if the outermost
+	 * operation completes, holding the session mutex (or lock) just once. The
+	 * writes to an external store are sent then too, since the operation may
+	 * not be followed by an unlock (i.e. when sweeping or if locking fails).
+	 * Package use only.
+	 */
+	void endSessionWrites() {
+		final SessionWriteBuffer buffer = SessionWriteBuffer
+				.close(getSessionKey());
+		if (buffer != null) {
+			if (!buffer.isEmpty()) {
+				writeSession(null, null, buffer);
+				buffer.bound(replicationMeter);
+			}
+			flushState();
+		}
+	}
+
+	/**
+	 * Returns an attribute of the session, as written by the current request
+	 * if buffered.
+	 */
+	private Object getSessionAttribute(String key) {
+		final SessionWriteBuffer buffer = SessionWriteBuffer
+				.current(getSessionKey());
+		if (buffer != null && buffer.contains(key)) {
+			return buffer.get(key);
+		}
+		return getSessionMap().get(key);
+	}
+
+	/**
+	 * Put an attribute in the session, once the writes of the operation in
+	 * progress are written if buffered, and measure it once put.
+	 * 
+	 * @param kind
+	 *            the kind of value
+	 * @param owner
+	 *            the conversation the attribute belongs to, not to put it if
+	 *            ended meanwhile, null if not an attribute of a conversation
+	 */
+	private void putSessionAttribute(String key, Object value, BindKind kind,
+			ConversationId owner) {
+		final SessionWriteBuffer buffer = SessionWriteBuffer
+				.current(getSessionKey());
+		if (buffer != null) {
+			buffer.put(key, value, kind, owner);
+		} else {
+			writeSessionAttribute(key, value);
+			replicationMeter.bound(kind, key, owner, value);
+		}
+	}
+
+	/**
+	 * Remove an attribute from the session, once the writes of the operation
+	 * in progress are written if buffered.
+	 */
+	private void removeSessionAttribute(String key) {
+		final SessionWriteBuffer buffer = SessionWriteBuffer
+				.current(getSessionKey());
+		if (buffer != null) {
+			buffer.remove(key);
+		} else {
+			writeSessionAttribute(key, null);
+		}
+	}
+
+	/**
+	 * Put an attribute in the session, or remove it if the value is null,
+	 * right away.
+	 */
+	private void writeSessionAttribute(String key, Object value) {
+		writeSession(key, value, null);
+	}
+
+	/**
+	 * Write either an attribute or a buffer of writes to the session, holding
+	 * the session mutex (or lock) just for it.
+	 */
+	private void writeSession(String key, Object value,
+			SessionWriteBuffer buffer) {
+		final SharedAttributeMap<Object> sessionMap = getSessionMap();
+		final ConversationIndex index = buffer != null ? getIndex() : null;
+		final LockMetrics currentMetrics = lockMetrics;
+		if (sessionLock != null) {
+			final long acquiredAt = currentMetrics.lock(LockKind.SESSION,
+					sessionLock);
+			try {
+				writeSession(sessionMap, key, value, buffer, index);
+			} finally {
+				currentMetrics.unlock(LockKind.SESSION, sessionLock,
+						acquiredAt);
+			}
+		} else {
+			final long waitStart = currentMetrics.startWait();
+			synchronized (sessionMap.getMutex()) {
+				final long acquiredAt = currentMetrics.acquired(
+						LockKind.SESSION, waitStart, -1);
+				try {
+					writeSession(sessionMap, key, value, buffer, index);
+				} finally {
+					currentMetrics.released(LockKind.SESSION, acquiredAt);
+				}
+			}
+		}
+	}
+
+	private static void writeSession(SharedAttributeMap<Object> sessionMap,
+			String key, Object value, SessionWriteBuffer buffer,
+			ConversationIndex index) {
+		if (buffer != null) {
+			buffer.writeTo(sessionMap, index);
+		} else if (value != null) {
+			sessionMap.put(key, value);
+		} else {
+			sessionMap.remove(key);
+		}
+	}
+
+	/**
+	 * Acquire a lock of the container, timing it if measured.
+	 * 
+	 * @return the time it was acquired, 0 if not measured
+	 */
+	private long lockContainer(Lock lock) {
+		return lockMetrics.lock(LockKind.CONTAINER, lock);
+	}
+
+	/**
+	 * Release a lock acquired by {@link #lockContainer(Lock)}.
+	 */
+	private void unlockContainer(Lock lock, long acquiredAt) {
+		lockMetrics.unlock(LockKind.CONTAINER, lock, acquiredAt);
+	}
+
+	/**
+	 * Returns the lock guarding the identified conversation.
+	 */
+	private Lock getLock(ConversationId id) {
+		if (locks.length == 1) {
+			return locks[0];
+		}
+		// spread the hash so ids differing in the high bits do not collide
+		int hash = id.hashCode();
+		hash ^= (hash >>> 20) ^ (hash >>> 12);
+		hash ^= (hash >>> 7) ^ (hash >>> 4);
+		return locks[hash & (locks.length - 1)];
+	}
+
+	private void createLocks() {
+		if (lockingMode != ContainerLockingMode.CONTAINER) {
+			locks = new Lock[LOCK_STRIPES];
+			for (int i = 0; i < locks.length; i++) {
+				locks[i] = new ReentrantLock();
+			}
+			evictionLock = new ReentrantLock();
+			sharedValueLock = new ReentrantLock();
+			if (lockingMode == ContainerLockingMode.VIRTUAL_THREADS) {
+				sessionLock = new ReentrantLock();
+			}
+		} else {
+			locks = new Lock[] { new ReentrantLock() };
+			evictionLock = locks[0];
+			sharedValueLock = locks[0];
+		}
+	}
+
+	/**
+	 * The session is leaving this node: tell the sweeper to stop sweeping it.
+	 */
+	public void sessionWillPassivate(HttpSessionEvent event) {
+		ConversationExpirySweeper.sessionWillPassivate(event.getSession());
+	}
+
+	/**
+	 * The session has been activated in this node: tell the sweeper to sweep
+	 * it.
+	 */
+	public void sessionDidActivate(HttpSessionEvent event) {
+		ConversationExpirySweeper.sessionDidActivate(event.getSession());
+	}
+
+	/**
+	 * Read the input stream
+	 * 
+	 * @param in
+	 *            the input stream
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		createLocks();
+		conversationKeys = new ConcurrentHashMap<ConversationId, String>();
+		lockMetrics = LockMetrics.NONE;
+		replicationMeter = ReplicationMeter.NONE;
+		conversationStore = new SessionMapConversationStore();
 	}
 }
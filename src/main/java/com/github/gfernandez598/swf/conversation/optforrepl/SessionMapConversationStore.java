@@ -0,0 +1,75 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.springframework.webflow.context.ExternalContextHolder;
+import org.springframework.webflow.core.collection.SharedAttributeMap;
+
+/**
+ * <p>
+ * The default conversation store: the session map. Conversations are not
+ * paged out to it, they are kept whole in their slots of the session, so
+ * they are replicated along with it as usual. Should a state be stored, it is
+ * bound to the session of the current request, next to its conversation.
+ * </p>
+ * <p>
+ * The containers write those states themselves, holding the session mutex or
+ * the lock replacing it (see
+ * {@link ContainerLockingMode#VIRTUAL_THREADS}), so the methods writing them
+ * here are only used when called directly.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class SessionMapConversationStore implements ConversationStore {
+
+	public boolean store(String key, byte[] state) {
+		final SharedAttributeMap<Object> sessionMap = getSessionMap();
+		synchronized (sessionMap.getMutex()) {
+			sessionMap.put(getStateKey(key), state);
+		}
+		return true;
+	}
+
+	public byte[] load(String key) {
+		return (byte[]) getSessionMap().get(getStateKey(key));
+	}
+
+	public void remove(String key) {
+		final SharedAttributeMap<Object> sessionMap = getSessionMap();
+		synchronized (sessionMap.getMutex()) {
+			sessionMap.remove(getStateKey(key));
+		}
+	}
+
+	/**
+	 * Returns the session key of the state stored under the given key. For
+	 * package level use only.
+	 */
+	static String getStateKey(String key) {
+		return key + ".state";
+	}
+
+	private SharedAttributeMap<Object> getSessionMap() {
+		return ExternalContextHolder.getExternalContext().getSessionMap();
+	}
+}
@@ -0,0 +1,232 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.webflow.context.ExternalContextHolder;
+import org.springframework.webflow.conversation.ConversationId;
+import org.springframework.webflow.core.collection.MutableAttributeMap;
+import org.springframework.webflow.core.collection.SharedAttributeMap;
+
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ReplicationMetrics.BindKind;
+
+/**
+ * <p>
+ * The writes of a request to the session slots of a conversation container,
+ * kept in the request map while the container operation writing them is in
+ * progress and written all at once, holding the session mutex just once, when
+ * the outermost one completes. Only the last write of each slot is kept.
+ * </p>
+ * <p>
+ * The slot of a conversation, and those of its attributes, are not written if
+ * the conversation has been ended meanwhile by another request, nor measured
+ * as bound then.
+ * </p>
+ * <p>
+ * Only accessed by the thread serving the request.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+final class SessionWriteBuffer {
+
+	private static final String REQUEST_ATTRIBUTE = SessionWriteBuffer.class
+			.getName() + ".REQUEST.";
+
+	/**
+	 * Marks a slot to be removed.
+	 */
+	private static final Object REMOVED = new Object();
+
+	/**
+	 * The values to write, or {@link #REMOVED}, by session key, in the order
+	 * first written.
+	 */
+	private final Map<String, Object> writes = new LinkedHashMap<String, Object>();
+
+	/**
+	 * The conversation each slot belongs to, by session key.
+	 */
+	private final Map<String, ConversationId> owners = new HashMap<String, ConversationId>();
+
+	/**
+	 * The kind of value written to each slot, by session key.
+	 */
+	private final Map<String, BindKind> kinds = new HashMap<String, BindKind>();
+
+	/**
+	 * The number of container operations in progress.
+	 */
+	private int depth;
+
+	private SessionWriteBuffer() {
+	}
+
+	/**
+	 * Start buffering the writes to the slots of a container, until the
+	 * matching {@link #close(String)}.
+	 * 
+	 * @param sessionKey
+	 *            the session key of the container
+	 */
+	static void open(String sessionKey) {
+		final MutableAttributeMap<Object> requestMap = getRequestMap();
+		final String attribute = REQUEST_ATTRIBUTE + sessionKey;
+		SessionWriteBuffer buffer = (SessionWriteBuffer) requestMap
+				.get(attribute);
+		if (buffer == null) {
+			buffer = new SessionWriteBuffer();
+			requestMap.put(attribute, buffer);
+		}
+		buffer.depth++;
+	}
+
+	/**
+	 * Stop buffering the writes to the slots of a container.
+	 * 
+	 * @param sessionKey
+	 *            the session key of the container
+	 * @return the buffer to write to the session once the outermost operation
+	 *         completes, null otherwise
+	 */
+	static SessionWriteBuffer close(String sessionKey) {
+		final MutableAttributeMap<Object> requestMap = getRequestMap();
+		final String attribute = REQUEST_ATTRIBUTE + sessionKey;
+		final SessionWriteBuffer buffer = (SessionWriteBuffer) requestMap
+				.get(attribute);
+		if (buffer == null || --buffer.depth > 0) {
+			return null;
+		}
+		requestMap.remove(attribute);
+		return buffer;
+	}
+
+	/**
+	 * Returns the buffer of the writes to the slots of a container, null if
+	 * not buffering them.
+	 * 
+	 * @param sessionKey
+	 *            the session key of the container
+	 */
+	static SessionWriteBuffer current(String sessionKey) {
+		return (SessionWriteBuffer) getRequestMap().get(
+				REQUEST_ATTRIBUTE + sessionKey);
+	}
+
+	/**
+	 * Write a value to a slot, once the buffer is written.
+	 * 
+	 * @param kind
+	 *            the kind of value, to measure it once written
+	 * @param owner
+	 *            the conversation the slot belongs to, not to write it if
+	 *            ended meanwhile, null if not a slot of a conversation
+	 */
+	void put(String key, Object value, BindKind kind, ConversationId owner) {
+		writes.put(key, value);
+		kinds.put(key, kind);
+		if (owner != null) {
+			owners.put(key, owner);
+		}
+	}
+
+	/**
+	 * Remove a slot, once the buffer is written.
+	 */
+	void remove(String key) {
+		writes.put(key, REMOVED);
+		owners.remove(key);
+	}
+
+	/**
+	 * Returns whether nothing has been written in this buffer.
+	 */
+	boolean isEmpty() {
+		return writes.isEmpty();
+	}
+
+	/**
+	 * Returns whether a slot has been written (or removed) in this buffer.
+	 */
+	boolean contains(String key) {
+		return writes.containsKey(key);
+	}
+
+	/**
+	 * Returns the value written to a slot in this buffer, null if removed.
+	 */
+	Object get(String key) {
+		final Object value = writes.get(key);
+		return value == REMOVED ? null : value;
+	}
+
+	/**
+	 * Write the buffered values to the session, dropping from the buffer
+	 * those not written. Called while holding the session mutex (or lock).
+	 * 
+	 * @param sessionMap
+	 *            the session
+	 * @param index
+	 *            the index of the conversations of the container
+	 */
+	void writeTo(SharedAttributeMap<Object> sessionMap, ConversationIndex index) {
+		for (Iterator<Map.Entry<String, Object>> it = writes.entrySet()
+				.iterator(); it.hasNext();) {
+			final Map.Entry<String, Object> write = it.next();
+			if (write.getValue() == REMOVED) {
+				sessionMap.remove(write.getKey());
+			} else {
+				final ConversationId owner = owners.get(write.getKey());
+				if (owner == null || index.contains(owner)) {
+					sessionMap.put(write.getKey(), write.getValue());
+				} else {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Measure the values written to the session by {@link #writeTo}. Called
+	 * once the session mutex (or lock) is released, since measuring takes
+	 * serializing them.
+	 * 
+	 * @param meter
+	 *            the meter
+	 */
+	void bound(ReplicationMeter meter) {
+		for (Map.Entry<String, Object> write : writes.entrySet()) {
+			if (write.getValue() != REMOVED) {
+				meter.bound(kinds.get(write.getKey()), write.getKey(),
+						owners.get(write.getKey()), write.getValue());
+			}
+		}
+	}
+
+	private static MutableAttributeMap<Object> getRequestMap() {
+		return ExternalContextHolder.getExternalContext().getRequestMap();
+	}
+}
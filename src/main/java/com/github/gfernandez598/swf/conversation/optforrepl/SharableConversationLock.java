@@ -0,0 +1,42 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.springframework.webflow.conversation.impl.ConversationLock;
+
+/**
+ * <p>
+ * A conversation lock which may be held shared by several requests, which
+ * must then leave the conversation as it is: no value is cached, written or
+ * paged out while it is held shared.
+ * </p>
+ * 
+ * @see ReadWriteConversationLockFactory
+ * @author gfernandez598
+ * 
+ */
+interface SharableConversationLock extends ConversationLock {
+
+	/**
+	 * Returns whether the current thread holds the lock shared.
+	 */
+	boolean isHeldShared();
+}
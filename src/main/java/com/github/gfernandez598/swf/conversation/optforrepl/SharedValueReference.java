@@ -0,0 +1,52 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * Written instead of an attribute value shared among the conversations of a
+ * session, which is kept once in its own slot of the session: it just carries
+ * the hash of the serialized value. Read back, it stands for the value until
+ * first accessed.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+final class SharedValueReference implements Serializable {
+
+	private static final long serialVersionUID = 4290757152113634911L;
+
+	private final String hash;
+
+	SharedValueReference(String hash) {
+		this.hash = hash;
+	}
+
+	/**
+	 * Returns the hash of the serialized value.
+	 */
+	String getHash() {
+		return hash;
+	}
+}
@@ -0,0 +1,127 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+/**
+ * <p>
+ * Bound to a session whose conversations are paged out to a
+ * {@link ConversationStore}, it removes their states from the store once the
+ * session ends (i.e. it expires), since the conversations are not ended one by
+ * one then.
+ * </p>
+ * <p>
+ * It keeps track of the states stored (or, with an
+ * {@link ExternalConversationStore}, read) by this node only: when replicated
+ * the conversations carry their whole state along, or just its key if the
+ * store is shared by the nodes.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+class StoredConversationsReleaser implements HttpSessionBindingListener,
+		Serializable {
+
+	private static final long serialVersionUID = -6713850392217560871L;
+
+	/**
+	 * The store of this node, null once read back on another one.
+	 */
+	private transient ConversationStore store;
+
+	/**
+	 * The keys of the states stored by this node, none once read back.
+	 */
+	private transient Set<String> keys = newKeySet();
+
+	/**
+	 * Create a new releaser.
+	 * 
+	 * @param store
+	 *            the store the states are paged out to
+	 */
+	StoredConversationsReleaser(ConversationStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Returns the store the states are paged out to, null if read back.
+	 */
+	ConversationStore getStore() {
+		return store;
+	}
+
+	/**
+	 * The state of a conversation has been stored.
+	 */
+	void stored(String key) {
+		keys.add(key);
+	}
+
+	/**
+	 * The state of a conversation has been removed.
+	 */
+	void removed(String key) {
+		keys.remove(key);
+	}
+
+	public void valueBound(HttpSessionBindingEvent event) {
+	}
+
+	public void valueUnbound(HttpSessionBindingEvent event) {
+		if (store == null) {
+			return;
+		}
+		if (store instanceof ExternalConversationStore) {
+			// a single round trip
+			((ExternalConversationStore) store).write(
+					Collections.<String, byte[]> emptyMap(),
+					new ArrayList<String>(keys));
+		} else {
+			for (String key : keys) {
+				store.remove(key);
+			}
+		}
+		keys.clear();
+	}
+
+	private static Set<String> newKeySet() {
+		return Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		keys = newKeySet();
+	}
+}
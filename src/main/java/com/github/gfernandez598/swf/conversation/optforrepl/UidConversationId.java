@@ -0,0 +1,208 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.UUID;
+
+import org.springframework.util.Assert;
+import org.springframework.webflow.conversation.ConversationId;
+
+/**
+ * <p>
+ * A conversation id wrapping the uid generated by an
+ * {@link com.github.gfernandez598.swf.util.UidGenerator}. Unlike
+ * {@link org.springframework.webflow.conversation.impl.SimpleConversationId}
+ * it gives access to the uid, so it can be written in a compact form.
+ * </p>
+ * <p>
+ * See {@link #write(ConversationId, ObjectOutput)} for that compact form:
+ * ids wrapping an {@link UUID}, a {@link Long} or an {@link Integer} are
+ * written as primitives, without any class descriptor.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+class UidConversationId extends ConversationId {
+
+	private static final long serialVersionUID = 3185402431580743853L;
+
+	// tags of the compact form
+
+	private static final byte OBJECT = 0;
+
+	private static final byte UUID_UID = 1;
+
+	private static final byte LONG_UID = 2;
+
+	private static final byte INTEGER_UID = 3;
+
+	private final Serializable uid;
+
+	/**
+	 * The string form of the uid, built once.
+	 */
+	private transient String encodedUid;
+
+	/**
+	 * The session key of the conversation, built once.
+	 */
+	private transient SessionKey sessionKey;
+
+	/**
+	 * Create a new conversation id.
+	 * 
+	 * @param uid
+	 *            the unique id
+	 */
+	public UidConversationId(Serializable uid) {
+		Assert.notNull(uid, "The uid is required");
+		this.uid = uid;
+	}
+
+	/**
+	 * Returns the wrapped uid.
+	 */
+	public Serializable getUid() {
+		return uid;
+	}
+
+	public boolean equals(Object obj) {
+		if (!(obj instanceof UidConversationId)) {
+			return false;
+		}
+		return uid.equals(((UidConversationId) obj).uid);
+	}
+
+	public int hashCode() {
+		return uid.hashCode();
+	}
+
+	public String toString() {
+		String encoded = encodedUid;
+		if (encoded == null) {
+			encoded = uid.toString();
+			encodedUid = encoded;
+		}
+		return encoded;
+	}
+
+	/**
+	 * Returns the session key of the conversation, this id prefixed by the
+	 * given prefix. It is built once and cached, while the prefix does not
+	 * change.
+	 * 
+	 * @param prefix
+	 *            the prefix of the session keys of the conversations
+	 * @return the session key
+	 */
+	String getSessionKey(String prefix) {
+		SessionKey key = sessionKey;
+		if (key == null
+				|| (key.prefix != prefix && !key.prefix.equals(prefix))) {
+			key = new SessionKey(prefix, prefix + toString());
+			sessionKey = key;
+		}
+		return key.key;
+	}
+
+	/**
+	 * Write a conversation id in its compact form: a tag followed by the uid
+	 * as primitives, or by the id itself if it is not a known one.
+	 * 
+	 * @param id
+	 *            the id to write
+	 * @param out
+	 *            the output
+	 * @throws IOException
+	 */
+	static void write(ConversationId id, ObjectOutput out) throws IOException {
+		if (id instanceof UidConversationId) {
+			final Serializable uid = ((UidConversationId) id).uid;
+			if (uid instanceof UUID) {
+				out.writeByte(UUID_UID);
+				out.writeLong(((UUID) uid).getMostSignificantBits());
+				out.writeLong(((UUID) uid).getLeastSignificantBits());
+				return;
+			}
+			if (uid instanceof Long) {
+				out.writeByte(LONG_UID);
+				out.writeLong(((Long) uid).longValue());
+				return;
+			}
+			if (uid instanceof Integer) {
+				out.writeByte(INTEGER_UID);
+				out.writeInt(((Integer) uid).intValue());
+				return;
+			}
+		}
+		out.writeByte(OBJECT);
+		out.writeObject(id);
+	}
+
+	/**
+	 * Read a conversation id written by
+	 * {@link #write(ConversationId, ObjectOutput)}.
+	 * 
+	 * @param in
+	 *            the input
+	 * @return the id
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	static ConversationId read(ObjectInput in) throws IOException,
+			ClassNotFoundException {
+		final byte tag = in.readByte();
+		switch (tag) {
+		case UUID_UID:
+			return new UidConversationId(new UUID(in.readLong(),
+					in.readLong()));
+		case LONG_UID:
+			return new UidConversationId(Long.valueOf(in.readLong()));
+		case INTEGER_UID:
+			return new UidConversationId(Integer.valueOf(in.readInt()));
+		case OBJECT:
+			return (ConversationId) in.readObject();
+		default:
+			throw new IOException("Unknown conversation id tag " + tag);
+		}
+	}
+
+	/**
+	 * A session key along with the prefix it was built with, so both are
+	 * published together.
+	 */
+	private static final class SessionKey {
+
+		final String prefix;
+
+		final String key;
+
+		SessionKey(String prefix, String key) {
+			this.prefix = prefix;
+			this.key = key;
+		}
+	}
+}
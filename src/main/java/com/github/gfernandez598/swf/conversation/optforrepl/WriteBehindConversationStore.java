@@ -0,0 +1,405 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+/**
+ * <p>
+ * Writes to an {@link ExternalConversationStore} behind the requests: the
+ * writes are queued, so unlocking a conversation does not wait for the
+ * store, and sent by a flusher thread of the node, all those queued at once
+ * in a single {@link #write(Map, Collection)}, while the previous one is in
+ * flight.
+ * </p>
+ * <p>
+ * Saves of the same conversation are coalesced: as each state is written
+ * under a key of its own and the previous one removed, a state still queued
+ * when the next one is written is never sent. The states queued or in flight
+ * are loaded from the queue, so the next request of the session on this node
+ * reads its writes. The other nodes do not see them until flushed: a node
+ * taking over a session right after a crash loses the last writes.
+ * </p>
+ * <p>
+ * Only the writes to the store are deferred. The session is still written by
+ * the request itself, since servlet containers replicate what a request binds
+ * once it completes, and just the key of each state is bound anyway.
+ * </p>
+ * <p>
+ * At most {@link #setMaxPendingWrites(int)} writes are queued, beyond that the
+ * requests wait for the flusher, started on the first write. Call
+ * {@link #close()} (i.e. as the destroy method of the bean) to flush them and
+ * stop the flusher.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class WriteBehindConversationStore implements
+		ExternalConversationStore {
+
+	private static final Log logger = LogFactory
+			.getLog(WriteBehindConversationStore.class);
+
+	private final ExternalConversationStore target;
+
+	private int maxPendingWrites = 10000;
+
+	private long retryDelayMillis = 1000;
+
+	private final Lock lock = new ReentrantLock();
+
+	private final Condition pending = lock.newCondition();
+
+	private final Condition flushed = lock.newCondition();
+
+	/**
+	 * The states queued, by key. Guarded by the lock.
+	 */
+	private Map<String, byte[]> pendingStates = new LinkedHashMap<String, byte[]>();
+
+	/**
+	 * The keys of the states to remove queued. Guarded by the lock.
+	 */
+	private Set<String> pendingRemovals = new LinkedHashSet<String>();
+
+	/**
+	 * The states being written by the flusher. Guarded by the lock.
+	 */
+	private Map<String, byte[]> flushingStates = Collections.emptyMap();
+
+	/**
+	 * The writes queued so far, and those written so far. Guarded by the
+	 * lock.
+	 */
+	private long queuedWrites;
+
+	private long writtenWrites;
+
+	private boolean closed;
+
+	/**
+	 * The flusher, null until the first write. Guarded by the lock.
+	 */
+	private Thread flusher;
+
+	/**
+	 * Create a write behind of the given store.
+	 * 
+	 * @param target
+	 *            the store
+	 */
+	public WriteBehindConversationStore(ExternalConversationStore target) {
+		Assert.notNull(target, "A target store must be supplied.");
+		this.target = target;
+	}
+
+	/**
+	 * Returns the maximum number of writes queued.
+	 */
+	public int getMaxPendingWrites() {
+		return maxPendingWrites;
+	}
+
+	/**
+	 * Sets the maximum number of writes queued (states to store and to
+	 * remove), beyond it the requests wait for the flusher to catch up. The
+	 * default is 10000.
+	 * 
+	 * @param maxPendingWrites
+	 *            the maximum number of writes queued
+	 */
+	public void setMaxPendingWrites(int maxPendingWrites) {
+		Assert.isTrue(maxPendingWrites > 0,
+				"The maxPendingWrites must be positive.");
+		this.maxPendingWrites = maxPendingWrites;
+	}
+
+	/**
+	 * Returns the milliseconds waited before writing again after a failure.
+	 */
+	public long getRetryDelayMillis() {
+		return retryDelayMillis;
+	}
+
+	/**
+	 * Sets the milliseconds waited before writing again after a failure of
+	 * the store. The default is 1000.
+	 * 
+	 * @param retryDelayMillis
+	 *            the delay in milliseconds
+	 */
+	public void setRetryDelayMillis(long retryDelayMillis) {
+		this.retryDelayMillis = retryDelayMillis;
+	}
+
+	/**
+	 * Returns the number of writes queued.
+	 */
+	public int getPendingWrites() {
+		lock.lock();
+		try {
+			return pendingStates.size() + pendingRemovals.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean store(String key, byte[] state) {
+		write(Collections.singletonMap(key, state),
+				Collections.<String> emptySet());
+		return true;
+	}
+
+	public byte[] load(String key) {
+		lock.lock();
+		try {
+			if (pendingRemovals.contains(key)) {
+				return null;
+			}
+			byte[] state = pendingStates.get(key);
+			if (state == null) {
+				state = flushingStates.get(key);
+			}
+			if (state != null) {
+				return state;
+			}
+		} finally {
+			lock.unlock();
+		}
+		return target.load(key);
+	}
+
+	public void remove(String key) {
+		write(Collections.<String, byte[]> emptyMap(),
+				Collections.singleton(key));
+	}
+
+	public void write(Map<String, byte[]> states,
+			Collection<String> removedKeys) {
+		lock.lock();
+		try {
+			while (!closed
+					&& pendingStates.size() + pendingRemovals.size() >= maxPendingWrites) {
+				flushed.awaitUninterruptibly();
+			}
+			Assert.state(!closed, "The write behind store has been closed.");
+			if (flusher == null) {
+				startFlusher();
+			}
+			for (Map.Entry<String, byte[]> state : states.entrySet()) {
+				pendingRemovals.remove(state.getKey());
+				pendingStates.put(state.getKey(), state.getValue());
+			}
+			for (String key : removedKeys) {
+				// a state never sent needs no removal, unless being sent now
+				if (pendingStates.remove(key) == null
+						|| flushingStates.containsKey(key)) {
+					pendingRemovals.add(key);
+				}
+			}
+			queuedWrites++;
+			pending.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until the writes queued so far have been written.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait, in milliseconds
+	 * @return whether written
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean flush(long timeout) throws InterruptedException {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		lock.lock();
+		try {
+			final long awaited = queuedWrites;
+			while (writtenWrites < awaited) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = flushed.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Flush the writes queued, waiting up to the given time, and stop the
+	 * flusher. No write is accepted afterwards.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait, in milliseconds
+	 * @return whether every write was written
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean close(long timeout) throws InterruptedException {
+		boolean written = false;
+		try {
+			written = flush(timeout);
+		} finally {
+			lock.lock();
+			try {
+				closed = true;
+				pending.signal();
+				flushed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+		if (!written) {
+			logger.warn(getPendingWrites()
+					+ " conversation writes were not written to the store");
+		}
+		return written;
+	}
+
+	/**
+	 * Flush the writes queued, waiting up to 10 seconds, and stop the flusher.
+	 * If interrupted meanwhile, it stops waiting, keeping the interrupt status.
+	 */
+	public void close() {
+		try {
+			close(10000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn(getPendingWrites()
+					+ " conversation writes may not be written to the store");
+		}
+	}
+
+	/**
+	 * Start the flusher. Called holding the lock.
+	 */
+	private void startFlusher() {
+		flusher = new Thread(new Runnable() {
+			public void run() {
+				flushPending();
+			}
+		}, "conversation-write-behind");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * The loop of the flusher: take every write queued and send them at once.
+	 */
+	private void flushPending() {
+		for (;;) {
+			final Map<String, byte[]> states;
+			final Set<String> removedKeys;
+			final long writes;
+			lock.lock();
+			try {
+				while (pendingStates.isEmpty() && pendingRemovals.isEmpty()) {
+					if (closed) {
+						return;
+					}
+					writtenWrites = queuedWrites;
+					flushed.signalAll();
+					pending.awaitUninterruptibly();
+				}
+				states = pendingStates;
+				removedKeys = pendingRemovals;
+				writes = queuedWrites;
+				flushingStates = states;
+				pendingStates = new LinkedHashMap<String, byte[]>();
+				pendingRemovals = new LinkedHashSet<String>();
+			} finally {
+				lock.unlock();
+			}
+			final boolean written = send(states, removedKeys);
+			lock.lock();
+			try {
+				flushingStates = Collections.emptyMap();
+				if (written) {
+					writtenWrites = writes;
+				} else {
+					requeue(states, removedKeys);
+				}
+				flushed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (!written) {
+				try {
+					Thread.sleep(retryDelayMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private boolean send(Map<String, byte[]> states, Set<String> removedKeys) {
+		try {
+			target.write(states, removedKeys);
+			return true;
+		} catch (RuntimeException e) {
+			logger.warn("Could not write " + states.size() + " states and "
+					+ removedKeys.size()
+					+ " removals to the store, retrying later", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Put back the writes that failed before those queued meanwhile, unless
+	 * superseded by them. Called holding the lock.
+	 */
+	private void requeue(Map<String, byte[]> states, Set<String> removedKeys) {
+		for (Iterator<Map.Entry<String, byte[]>> it = states.entrySet()
+				.iterator(); it.hasNext();) {
+			final String key = it.next().getKey();
+			if (pendingRemovals.remove(key)) {
+				// removed meanwhile, neither is needed
+				it.remove();
+			}
+		}
+		states.putAll(pendingStates);
+		removedKeys.addAll(pendingRemovals);
+		pendingStates = states;
+		pendingRemovals = removedKeys;
+	}
+}
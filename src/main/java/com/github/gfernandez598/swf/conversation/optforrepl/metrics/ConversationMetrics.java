@@ -0,0 +1,101 @@
+package com.github.gfernandez598.swf.conversation.optforrepl.metrics;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * <p>
+ * Receives the timings of the locks taken while serving the conversations of
+ * a {@link com.github.gfernandez598.swf.conversation.optforrepl.ReplicationOptimizedSessionBindingConversationManager}
+ * (see its <code>conversationMetrics</code> property), so it can be told
+ * whether piled up requests are waiting on a conversation, on its container
+ * or on the session.
+ * </p>
+ * <p>
+ * Implementations are called on the sampled lock acquisitions and releases
+ * (and on every timeout), from many threads at once, so they must be thread
+ * safe and cheap.
+ * </p>
+ * 
+ * @see HistogramConversationMetrics
+ * @see JmxConversationMetrics
+ * @see MicrometerConversationMetrics
+ * @author gfernandez598
+ * 
+ */
+public interface ConversationMetrics {
+
+	/**
+	 * The locks measured.
+	 */
+	enum LockKind {
+
+		/**
+		 * The lock of a conversation, held while a request works on it.
+		 */
+		CONVERSATION,
+
+		/**
+		 * The lock of the conversation container (or one of its stripes),
+		 * held while looking up, saving or removing a conversation.
+		 */
+		CONTAINER,
+
+		/**
+		 * The session mutex (or the lock replacing it), held while binding a
+		 * value to the session.
+		 */
+		SESSION
+	}
+
+	/**
+	 * A lock has been acquired.
+	 * 
+	 * @param kind
+	 *            the kind of lock
+	 * @param waitNanos
+	 *            the time waited for it, in nanoseconds
+	 * @param queueLength
+	 *            the number of threads found waiting for it, -1 if unknown
+	 */
+	void lockAcquired(LockKind kind, long waitNanos, int queueLength);
+
+	/**
+	 * A lock could not be acquired in time.
+	 * 
+	 * @param kind
+	 *            the kind of lock
+	 * @param waitNanos
+	 *            the time waited for it, in nanoseconds, -1 if not sampled
+	 * @param queueLength
+	 *            the number of threads found waiting for it, -1 if unknown
+	 */
+	void lockTimedOut(LockKind kind, long waitNanos, int queueLength);
+
+	/**
+	 * A lock has been released.
+	 * 
+	 * @param kind
+	 *            the kind of lock
+	 * @param holdNanos
+	 *            the time it was held, in nanoseconds
+	 */
+	void lockReleased(LockKind kind, long holdNanos);
+}
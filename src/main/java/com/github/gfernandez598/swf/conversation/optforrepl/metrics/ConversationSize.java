@@ -0,0 +1,75 @@
+package com.github.gfernandez598.swf.conversation.optforrepl.metrics;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * The serialized size of a conversation (or one of its attributes) bound to
+ * the session.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class ConversationSize implements Serializable {
+
+	private static final long serialVersionUID = 4719282930564738921L;
+
+	private final String sessionKey;
+
+	private final String conversationId;
+
+	private final long bytes;
+
+	public ConversationSize(String sessionKey, String conversationId,
+			long bytes) {
+		this.sessionKey = sessionKey;
+		this.conversationId = conversationId;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Returns the key it was bound under.
+	 */
+	public String getSessionKey() {
+		return sessionKey;
+	}
+
+	/**
+	 * Returns the id of the conversation.
+	 */
+	public String getConversationId() {
+		return conversationId;
+	}
+
+	/**
+	 * Returns the serialized size.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	public String toString() {
+		return sessionKey + " (" + conversationId + "): " + bytes + " bytes";
+	}
+}
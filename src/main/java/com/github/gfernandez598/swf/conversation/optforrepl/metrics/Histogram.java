@@ -0,0 +1,122 @@
+package com.github.gfernandez598.swf.conversation.optforrepl.metrics;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A lock free histogram of non negative values, in buckets of powers of two:
+ * recording a value is a few atomic increments, without allocating, so it can
+ * be left on in production. Percentiles are therefore approximate, reported
+ * as the upper bound of their bucket (at most twice the actual value).
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class Histogram {
+
+	/**
+	 * Bucket 0 counts zeros, bucket i the values in [2^(i-1), 2^i).
+	 */
+	private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a value, negatives taken as zero.
+	 * 
+	 * @param value
+	 *            the value
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the sum of the recorded values.
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * Returns the highest recorded value.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the recorded values, 0 if none.
+	 */
+	public double getMean() {
+		final long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Returns an upper bound of the given percentile of the recorded values.
+	 * 
+	 * @param percentile
+	 *            the percentile, between 0 and 100
+	 * @return the upper bound, 0 if none recorded
+	 */
+	public long getPercentile(double percentile) {
+		final long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < Long.SIZE; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				final long upperBound = i == 0 ? 0 : i == Long.SIZE - 1 ? Long.MAX_VALUE
+						: (1L << i) - 1;
+				return Math.min(upperBound, max.get());
+			}
+		}
+		return max.get();
+	}
+}
@@ -0,0 +1,110 @@
+package com.github.gfernandez598.swf.conversation.optforrepl.metrics;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Keeps, for each {@link ConversationMetrics.LockKind}, histograms of the
+ * wait times, hold times and queue lengths, and a count of timeouts.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class HistogramConversationMetrics implements ConversationMetrics {
+
+	private final Map<LockKind, LockStats> stats = new EnumMap<LockKind, LockStats>(
+			LockKind.class);
+
+	public HistogramConversationMetrics() {
+		for (LockKind kind : LockKind.values()) {
+			stats.put(kind, new LockStats());
+		}
+	}
+
+	public void lockAcquired(LockKind kind, long waitNanos, int queueLength) {
+		final LockStats lockStats = stats.get(kind);
+		lockStats.waitNanos.record(waitNanos);
+		if (queueLength >= 0) {
+			lockStats.queueLength.record(queueLength);
+		}
+	}
+
+	public void lockTimedOut(LockKind kind, long waitNanos, int queueLength) {
+		final LockStats lockStats = stats.get(kind);
+		lockStats.timeouts.incrementAndGet();
+		if (waitNanos >= 0) {
+			lockStats.waitNanos.record(waitNanos);
+		}
+		if (queueLength >= 0) {
+			lockStats.queueLength.record(queueLength);
+		}
+	}
+
+	public void lockReleased(LockKind kind, long holdNanos) {
+		stats.get(kind).holdNanos.record(holdNanos);
+	}
+
+	/**
+	 * Returns the histogram of the times waited for a kind of lock, in
+	 * nanoseconds.
+	 */
+	public Histogram getWaitNanos(LockKind kind) {
+		return stats.get(kind).waitNanos;
+	}
+
+	/**
+	 * Returns the histogram of the times a kind of lock was held, in
+	 * nanoseconds.
+	 */
+	public Histogram getHoldNanos(LockKind kind) {
+		return stats.get(kind).holdNanos;
+	}
+
+	/**
+	 * Returns the histogram of the threads found waiting for a kind of lock.
+	 */
+	public Histogram getQueueLength(LockKind kind) {
+		return stats.get(kind).queueLength;
+	}
+
+	/**
+	 * Returns the number of timeouts acquiring a kind of lock.
+	 */
+	public long getTimeouts(LockKind kind) {
+		return stats.get(kind).timeouts.get();
+	}
+
+	private static class LockStats {
+
+		final Histogram waitNanos = new Histogram();
+
+		final Histogram holdNanos = new Histogram();
+
+		final Histogram queueLength = new Histogram();
+
+		final AtomicLong timeouts = new AtomicLong();
+	}
+}
@@ -0,0 +1,169 @@
+package com.github.gfernandez598.swf.conversation.optforrepl.metrics;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Keeps histograms of the serialized sizes of the bound values, for each
+ * {@link ReplicationMetrics.BindKind}, of the binds and bytes per request,
+ * and the largest conversations (or conversation attributes) bound.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class HistogramReplicationMetrics implements ReplicationMetrics {
+
+	private static final Comparator<ConversationSize> LARGEST_FIRST = new Comparator<ConversationSize>() {
+		public int compare(ConversationSize size1, ConversationSize size2) {
+			return size1.getBytes() < size2.getBytes() ? 1 : size1
+					.getBytes() == size2.getBytes() ? 0 : -1;
+		}
+	};
+
+	private final Map<BindKind, Histogram> boundBytes = new EnumMap<BindKind, Histogram>(
+			BindKind.class);
+
+	private final Histogram requestBinds = new Histogram();
+
+	private final Histogram requestBytes = new Histogram();
+
+	/**
+	 * The largest conversations, by session key.
+	 */
+	private final Map<String, ConversationSize> largestConversations = new HashMap<String, ConversationSize>();
+
+	/**
+	 * How many of the largest conversations are kept.
+	 */
+	private int maxLargestConversations = 10;
+
+	public HistogramReplicationMetrics() {
+		for (BindKind kind : BindKind.values()) {
+			boundBytes.put(kind, new Histogram());
+		}
+	}
+
+	/**
+	 * Returns how many of the largest conversations are kept.
+	 */
+	public int getMaxLargestConversations() {
+		return maxLargestConversations;
+	}
+
+	/**
+	 * Sets how many of the largest conversations are kept. The default is 10.
+	 * 
+	 * @param maxLargestConversations
+	 *            the number of conversations
+	 */
+	public void setMaxLargestConversations(int maxLargestConversations) {
+		this.maxLargestConversations = maxLargestConversations;
+	}
+
+	public void bound(BindKind kind, String sessionKey, String conversationId,
+			long bytes) {
+		boundBytes.get(kind).record(bytes);
+		if (kind == BindKind.CONVERSATION || kind == BindKind.ATTRIBUTE) {
+			recordConversationSize(new ConversationSize(sessionKey,
+					conversationId, bytes));
+		}
+	}
+
+	public void requestCompleted(int binds, long bytes) {
+		requestBinds.record(binds);
+		requestBytes.record(bytes);
+	}
+
+	/**
+	 * Returns the histogram of the serialized sizes of a kind of bound value.
+	 */
+	public Histogram getBoundBytes(BindKind kind) {
+		return boundBytes.get(kind);
+	}
+
+	/**
+	 * Returns the histogram of the values bound per request.
+	 */
+	public Histogram getRequestBinds() {
+		return requestBinds;
+	}
+
+	/**
+	 * Returns the histogram of the bytes bound per request.
+	 */
+	public Histogram getRequestBytes() {
+		return requestBytes;
+	}
+
+	/**
+	 * Returns the largest conversations (or conversation attributes) bound,
+	 * largest first.
+	 */
+	public List<ConversationSize> getLargestConversations() {
+		final List<ConversationSize> result;
+		synchronized (largestConversations) {
+			result = new ArrayList<ConversationSize>(
+					largestConversations.values());
+		}
+		Collections.sort(result, LARGEST_FIRST);
+		return result;
+	}
+
+	/**
+	 * Keep the size of a conversation if among the largest. Linear in the
+	 * number kept, which is small, and only called on sampled requests.
+	 */
+	private void recordConversationSize(ConversationSize size) {
+		synchronized (largestConversations) {
+			final ConversationSize previous = largestConversations.get(size
+					.getSessionKey());
+			if (previous != null) {
+				if (size.getBytes() > previous.getBytes()) {
+					largestConversations.put(size.getSessionKey(), size);
+				}
+				return;
+			}
+			if (largestConversations.size() < maxLargestConversations) {
+				largestConversations.put(size.getSessionKey(), size);
+				return;
+			}
+			ConversationSize smallest = null;
+			for (ConversationSize kept : largestConversations.values()) {
+				if (smallest == null || kept.getBytes() < smallest.getBytes()) {
+					smallest = kept;
+				}
+			}
+			if (smallest != null && size.getBytes() > smallest.getBytes()) {
+				largestConversations.remove(smallest.getSessionKey());
+				largestConversations.put(size.getSessionKey(), size);
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package com.github.gfernandez598.swf.conversation.optforrepl.metrics;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Histograms of the conversation locks exposed through JMX: one
+ * {@link LockStatsMBean} per {@link ConversationMetrics.LockKind}, named
+ * <code>&lt;domain&gt;:type=ConversationLocks,lock=&lt;kind&gt;</code>, in the
+ * platform MBean server.
+ * </p>
+ * <p>
+ * Call {@link #register()} once configured (i.e. as the Spring init method)
+ * and {@link #unregister()} on shutdown.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class JmxConversationMetrics extends HistogramConversationMetrics {
+
+	private static final Log logger = LogFactory
+			.getLog(JmxConversationMetrics.class);
+
+	/**
+	 * The domain of the MBean names.
+	 */
+	private String domain = "com.github.gfernandez598.swf";
+
+	/**
+	 * Returns the domain of the MBean names.
+	 */
+	public String getDomain() {
+		return domain;
+	}
+
+	/**
+	 * Sets the domain of the MBean names, i.e. to tell apart several
+	 * applications. The default is "com.github.gfernandez598.swf".
+	 * 
+	 * @param domain
+	 *            the domain
+	 */
+	public void setDomain(String domain) {
+		this.domain = domain;
+	}
+
+	/**
+	 * Register the MBeans in the platform MBean server.
+	 * 
+	 * @throws JMException
+	 *             if they cannot be registered
+	 */
+	public void register() throws JMException {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (LockKind kind : LockKind.values()) {
+			server.registerMBean(new LockStats(this, kind), getObjectName(kind));
+		}
+	}
+
+	/**
+	 * Unregister the MBeans from the platform MBean server.
+	 */
+	public void unregister() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (LockKind kind : LockKind.values()) {
+			try {
+				server.unregisterMBean(getObjectName(kind));
+			} catch (JMException e) {
+				logger.warn("Could not unregister the statistics of the "
+						+ kind + " locks", e);
+			}
+		}
+	}
+
+	private ObjectName getObjectName(LockKind kind) throws JMException {
+		return new ObjectName(domain + ":type=ConversationLocks,lock="
+				+ kind.name());
+	}
+}
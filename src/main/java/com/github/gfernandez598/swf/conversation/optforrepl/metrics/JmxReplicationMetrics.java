@@ -0,0 +1,92 @@
+package com.github.gfernandez598.swf.conversation.optforrepl.metrics;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * Replication statistics exposed through JMX: a {@link ReplicationStatsMBean}
+ * named <code>&lt;domain&gt;:type=ConversationReplication</code>, in the
+ * platform MBean server.
+ * </p>
+ * <p>
+ * Call {@link #register()} once configured (i.e. as the Spring init method)
+ * and {@link #unregister()} on shutdown.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class JmxReplicationMetrics extends HistogramReplicationMetrics {
+
+	/**
+	 * The domain of the MBean name.
+	 */
+	private String domain = "com.github.gfernandez598.swf";
+
+	/**
+	 * Returns the domain of the MBean name.
+	 */
+	public String getDomain() {
+		return domain;
+	}
+
+	/**
+	 * Sets the domain of the MBean name, i.e. to tell apart several
+	 * applications. The default is "com.github.gfernandez598.swf".
+	 * 
+	 * @param domain
+	 *            the domain
+	 */
+	public void setDomain(String domain) {
+		this.domain = domain;
+	}
+
+	/**
+	 * Register the MBean in the platform MBean server.
+	 * 
+	 * @throws JMException
+	 *             if it cannot be registered
+	 */
+	public void register() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(
+				new ReplicationStats(this), getObjectName());
+	}
+
+	/**
+	 * Unregister the MBean from the platform MBean server.
+	 * 
+	 * @throws JMException
+	 *             if it cannot be unregistered
+	 */
+	public void unregister() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+				getObjectName());
+	}
+
+	private ObjectName getObjectName() throws JMException {
+		return new ObjectName(domain + ":type=ConversationReplication");
+	}
+}
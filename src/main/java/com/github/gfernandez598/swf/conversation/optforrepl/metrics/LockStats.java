@@ -0,0 +1,102 @@
+package com.github.gfernandez598.swf.conversation.optforrepl.metrics;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ConversationMetrics.LockKind;
+
+/**
+ * <p>
+ * The statistics of a kind of lock, read from the histograms of a
+ * {@link HistogramConversationMetrics}.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class LockStats implements LockStatsMBean {
+
+	private final HistogramConversationMetrics metrics;
+
+	private final LockKind kind;
+
+	public LockStats(HistogramConversationMetrics metrics, LockKind kind) {
+		this.metrics = metrics;
+		this.kind = kind;
+	}
+
+	public long getSamples() {
+		return metrics.getHoldNanos(kind).getCount();
+	}
+
+	public long getTimeouts() {
+		return metrics.getTimeouts(kind);
+	}
+
+	public double getWaitMeanMicros() {
+		return metrics.getWaitNanos(kind).getMean() / 1000;
+	}
+
+	public long getWait50thPercentileMicros() {
+		return toMicros(metrics.getWaitNanos(kind).getPercentile(50));
+	}
+
+	public long getWait99thPercentileMicros() {
+		return toMicros(metrics.getWaitNanos(kind).getPercentile(99));
+	}
+
+	public long getWaitMaxMicros() {
+		return toMicros(metrics.getWaitNanos(kind).getMax());
+	}
+
+	public double getHoldMeanMicros() {
+		return metrics.getHoldNanos(kind).getMean() / 1000;
+	}
+
+	public long getHold50thPercentileMicros() {
+		return toMicros(metrics.getHoldNanos(kind).getPercentile(50));
+	}
+
+	public long getHold99thPercentileMicros() {
+		return toMicros(metrics.getHoldNanos(kind).getPercentile(99));
+	}
+
+	public long getHoldMaxMicros() {
+		return toMicros(metrics.getHoldNanos(kind).getMax());
+	}
+
+	public double getQueueLengthMean() {
+		return metrics.getQueueLength(kind).getMean();
+	}
+
+	public long getQueueLength99thPercentile() {
+		return metrics.getQueueLength(kind).getPercentile(99);
+	}
+
+	public long getQueueLengthMax() {
+		return metrics.getQueueLength(kind).getMax();
+	}
+
+	private static long toMicros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
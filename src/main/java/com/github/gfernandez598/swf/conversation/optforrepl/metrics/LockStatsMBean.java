@@ -0,0 +1,60 @@
+package com.github.gfernandez598.swf.conversation.optforrepl.metrics;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * <p>
+ * Management interface of the statistics of a kind of lock, exposed by
+ * {@link JmxConversationMetrics}. Times are in microseconds. All but the
+ * timeouts are computed over the sampled acquisitions.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public interface LockStatsMBean {
+
+	long getSamples();
+
+	long getTimeouts();
+
+	double getWaitMeanMicros();
+
+	long getWait50thPercentileMicros();
+
+	long getWait99thPercentileMicros();
+
+	long getWaitMaxMicros();
+
+	double getHoldMeanMicros();
+
+	long getHold50thPercentileMicros();
+
+	long getHold99thPercentileMicros();
+
+	long getHoldMaxMicros();
+
+	double getQueueLengthMean();
+
+	long getQueueLength99thPercentile();
+
+	long getQueueLengthMax();
+}
@@ -0,0 +1,116 @@
+package com.github.gfernandez598.swf.conversation.optforrepl.metrics;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * <p>
+ * Publishes the conversation lock metrics to a Micrometer
+ * <code>MeterRegistry</code>, tagged by <code>lock</code> (the
+ * {@link ConversationMetrics.LockKind}):
+ * </p>
+ * <ul>
+ * <li><code>webflow.conversation.lock.wait</code>, timer of the times waited;
+ * </li>
+ * <li><code>webflow.conversation.lock.hold</code>, timer of the times held;</li>
+ * <li><code>webflow.conversation.lock.queue</code>, distribution of the
+ * threads found waiting;</li>
+ * <li><code>webflow.conversation.lock.timeouts</code>, counter of timeouts.</li>
+ * </ul>
+ * <p>
+ * Percentiles and histograms are enabled, as usual, through the configuration
+ * of the registry. Micrometer is an optional dependency, only needed when
+ * using this class.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class MicrometerConversationMetrics implements ConversationMetrics {
+
+	private final Map<LockKind, Meters> meters = new EnumMap<LockKind, Meters>(
+			LockKind.class);
+
+	/**
+	 * Create the meters in the given registry.
+	 * 
+	 * @param registry
+	 *            the registry
+	 */
+	public MicrometerConversationMetrics(MeterRegistry registry) {
+		for (LockKind kind : LockKind.values()) {
+			meters.put(kind, new Meters(registry, kind.name()));
+		}
+	}
+
+	public void lockAcquired(LockKind kind, long waitNanos, int queueLength) {
+		final Meters lockMeters = meters.get(kind);
+		lockMeters.wait.record(waitNanos, TimeUnit.NANOSECONDS);
+		if (queueLength >= 0) {
+			lockMeters.queue.record(queueLength);
+		}
+	}
+
+	public void lockTimedOut(LockKind kind, long waitNanos, int queueLength) {
+		final Meters lockMeters = meters.get(kind);
+		lockMeters.timeouts.increment();
+		if (waitNanos >= 0) {
+			lockMeters.wait.record(waitNanos, TimeUnit.NANOSECONDS);
+		}
+		if (queueLength >= 0) {
+			lockMeters.queue.record(queueLength);
+		}
+	}
+
+	public void lockReleased(LockKind kind, long holdNanos) {
+		meters.get(kind).hold.record(holdNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private static class Meters {
+
+		final Timer wait;
+
+		final Timer hold;
+
+		final DistributionSummary queue;
+
+		final Counter timeouts;
+
+		Meters(MeterRegistry registry, String lock) {
+			wait = registry.timer("webflow.conversation.lock.wait", "lock",
+					lock);
+			hold = registry.timer("webflow.conversation.lock.hold", "lock",
+					lock);
+			queue = registry.summary("webflow.conversation.lock.queue",
+					"lock", lock);
+			timeouts = registry.counter("webflow.conversation.lock.timeouts",
+					"lock", lock);
+		}
+	}
+}
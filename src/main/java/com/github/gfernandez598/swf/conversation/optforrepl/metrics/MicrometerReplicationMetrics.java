@@ -0,0 +1,87 @@
+package com.github.gfernandez598.swf.conversation.optforrepl.metrics;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * <p>
+ * Publishes the replication metrics to a Micrometer
+ * <code>MeterRegistry</code>:
+ * </p>
+ * <ul>
+ * <li><code>webflow.conversation.replication.bound</code>, distribution of the
+ * serialized sizes of the bound values, tagged by <code>kind</code> (the
+ * {@link ReplicationMetrics.BindKind});</li>
+ * <li><code>webflow.conversation.replication.request.binds</code>,
+ * distribution of the values bound per request;</li>
+ * <li><code>webflow.conversation.replication.request.bytes</code>,
+ * distribution of the bytes bound per request.</li>
+ * </ul>
+ * <p>
+ * The largest conversations are not published, their keys would make too
+ * many tags: see {@link HistogramReplicationMetrics} for them.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class MicrometerReplicationMetrics implements ReplicationMetrics {
+
+	private final Map<BindKind, DistributionSummary> boundBytes = new EnumMap<BindKind, DistributionSummary>(
+			BindKind.class);
+
+	private final DistributionSummary requestBinds;
+
+	private final DistributionSummary requestBytes;
+
+	/**
+	 * Create the meters in the given registry.
+	 * 
+	 * @param registry
+	 *            the registry
+	 */
+	public MicrometerReplicationMetrics(MeterRegistry registry) {
+		for (BindKind kind : BindKind.values()) {
+			boundBytes.put(kind, registry.summary(
+					"webflow.conversation.replication.bound", "kind",
+					kind.name()));
+		}
+		requestBinds = registry
+				.summary("webflow.conversation.replication.request.binds");
+		requestBytes = registry
+				.summary("webflow.conversation.replication.request.bytes");
+	}
+
+	public void bound(BindKind kind, String sessionKey, String conversationId,
+			long bytes) {
+		boundBytes.get(kind).record(bytes);
+	}
+
+	public void requestCompleted(int binds, long bytes) {
+		requestBinds.record(binds);
+		requestBytes.record(bytes);
+	}
+}
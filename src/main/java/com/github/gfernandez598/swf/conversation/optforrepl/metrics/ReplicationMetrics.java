@@ -0,0 +1,96 @@
+package com.github.gfernandez598.swf.conversation.optforrepl.metrics;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * <p>
+ * Receives the serialized sizes of the values a
+ * {@link com.github.gfernandez598.swf.conversation.optforrepl.ReplicationOptimizedSessionBindingConversationManager}
+ * binds to the session (see its <code>replicationMetrics</code> property),
+ * which is what the servlet container replicates, so the replication channel
+ * can be sized and bloated flows spotted.
+ * </p>
+ * <p>
+ * Only the requests sampled are measured, since measuring takes serializing
+ * the values once more. Implementations are called from many threads at once,
+ * so they must be thread safe.
+ * </p>
+ * 
+ * @see HistogramReplicationMetrics
+ * @see JmxReplicationMetrics
+ * @see MicrometerReplicationMetrics
+ * @author gfernandez598
+ * 
+ */
+public interface ReplicationMetrics {
+
+	/**
+	 * The values bound.
+	 */
+	enum BindKind {
+
+		/**
+		 * The conversation container, bound once per session.
+		 */
+		CONTAINER,
+
+		/**
+		 * The index of the conversations of the session.
+		 */
+		INDEX,
+
+		/**
+		 * A conversation.
+		 */
+		CONVERSATION,
+
+		/**
+		 * An attribute of a conversation, bound in its own slot.
+		 */
+		ATTRIBUTE
+	}
+
+	/**
+	 * A value has been bound to the session.
+	 * 
+	 * @param kind
+	 *            the kind of value
+	 * @param sessionKey
+	 *            the key it was bound under
+	 * @param conversationId
+	 *            the id of the conversation it belongs to, null for the
+	 *            container and the index
+	 * @param bytes
+	 *            its serialized size
+	 */
+	void bound(BindKind kind, String sessionKey, String conversationId,
+			long bytes);
+
+	/**
+	 * A request has finished working on its conversation.
+	 * 
+	 * @param binds
+	 *            the number of values it bound to the session
+	 * @param bytes
+	 *            their total serialized size
+	 */
+	void requestCompleted(int binds, long bytes);
+}
@@ -0,0 +1,104 @@
+package com.github.gfernandez598.swf.conversation.optforrepl.metrics;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ReplicationMetrics.BindKind;
+
+/**
+ * <p>
+ * The replication statistics, read from the histograms of a
+ * {@link HistogramReplicationMetrics}.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class ReplicationStats implements ReplicationStatsMBean {
+
+	private final HistogramReplicationMetrics metrics;
+
+	public ReplicationStats(HistogramReplicationMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public long getSampledRequests() {
+		return metrics.getRequestBinds().getCount();
+	}
+
+	public double getBindsPerRequestMean() {
+		return metrics.getRequestBinds().getMean();
+	}
+
+	public long getBindsPerRequest99thPercentile() {
+		return metrics.getRequestBinds().getPercentile(99);
+	}
+
+	public double getBytesPerRequestMean() {
+		return metrics.getRequestBytes().getMean();
+	}
+
+	public long getBytesPerRequest99thPercentile() {
+		return metrics.getRequestBytes().getPercentile(99);
+	}
+
+	public long getBytesPerRequestMax() {
+		return metrics.getRequestBytes().getMax();
+	}
+
+	public double getConversationBytesMean() {
+		return metrics.getBoundBytes(BindKind.CONVERSATION).getMean();
+	}
+
+	public long getConversationBytes99thPercentile() {
+		return metrics.getBoundBytes(BindKind.CONVERSATION).getPercentile(99);
+	}
+
+	public long getConversationBytesMax() {
+		return metrics.getBoundBytes(BindKind.CONVERSATION).getMax();
+	}
+
+	public double getAttributeBytesMean() {
+		return metrics.getBoundBytes(BindKind.ATTRIBUTE).getMean();
+	}
+
+	public long getAttributeBytesMax() {
+		return metrics.getBoundBytes(BindKind.ATTRIBUTE).getMax();
+	}
+
+	public double getIndexBytesMean() {
+		return metrics.getBoundBytes(BindKind.INDEX).getMean();
+	}
+
+	public double getContainerBytesMean() {
+		return metrics.getBoundBytes(BindKind.CONTAINER).getMean();
+	}
+
+	public String[] getLargestConversations() {
+		final List<ConversationSize> sizes = metrics.getLargestConversations();
+		final String[] result = new String[sizes.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = sizes.get(i).toString();
+		}
+		return result;
+	}
+}
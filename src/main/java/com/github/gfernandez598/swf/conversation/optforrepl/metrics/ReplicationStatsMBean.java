@@ -0,0 +1,61 @@
+package com.github.gfernandez598.swf.conversation.optforrepl.metrics;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * <p>
+ * Management interface of the replication statistics, exposed by
+ * {@link JmxReplicationMetrics}. Computed over the sampled requests.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public interface ReplicationStatsMBean {
+
+	long getSampledRequests();
+
+	double getBindsPerRequestMean();
+
+	long getBindsPerRequest99thPercentile();
+
+	double getBytesPerRequestMean();
+
+	long getBytesPerRequest99thPercentile();
+
+	long getBytesPerRequestMax();
+
+	double getConversationBytesMean();
+
+	long getConversationBytes99thPercentile();
+
+	long getConversationBytesMax();
+
+	double getAttributeBytesMean();
+
+	long getAttributeBytesMax();
+
+	double getIndexBytesMean();
+
+	double getContainerBytesMean();
+
+	String[] getLargestConversations();
+}
@@ -51,7 +51,7 @@ public class RandomUUIDUidGenerator implements UidGenerator, Serializable {
 
 	@Override
 	public Serializable parseUid(String encodedUid) {
-		return encodedUid;
+		return UUID.fromString(encodedUid);
 	}
 
 	static public void main(String[] arg) {
@@ -0,0 +1,143 @@
+package com.github.gfernandez598.swf.util;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+/**
+ * <p>
+ * Generates unique ids across the nodes of a cluster, as 64 bits longs made of
+ * (from most to least significant bits):
+ * </p>
+ * <ul>
+ * <li>41 bits of milliseconds elapsed since 2015-01-01T00:00:00Z, enough for
+ * about 69 years;</li>
+ * <li>10 bits of node id, different for each node of the cluster;</li>
+ * <li>12 bits of sequence, for up to 4096 ids per millisecond.</li>
+ * </ul>
+ * <p>
+ * It is thread safe and lock free: the last timestamp and sequence are kept
+ * together in a single {@link AtomicLong} updated by compare-and-set. When
+ * the sequence of a millisecond is exhausted (or the clock goes backwards) the
+ * timestamp is just moved forward instead of waiting for the clock.
+ * </p>
+ * <p>
+ * By default the node id is derived from the name of the running JVM (process
+ * id and host name), which makes collisions unlikely but not impossible: set
+ * a distinct {@link #setNodeId(int) node id} on each node of the cluster.
+ * </p>
+ * 
+ * @author gfernandez598
+ * 
+ */
+public class SnowflakeUidGenerator implements UidGenerator, Serializable {
+
+	private static final long serialVersionUID = 6271309532457281563L;
+
+	/**
+	 * 2015-01-01T00:00:00Z, the origin of the timestamps.
+	 */
+	private static final long EPOCH = 1420070400000L;
+
+	private static final int NODE_ID_BITS = 10;
+
+	private static final int SEQUENCE_BITS = 12;
+
+	/**
+	 * The highest allowed node id.
+	 */
+	public static final int MAX_NODE_ID = (1 << NODE_ID_BITS) - 1;
+
+	/**
+	 * The id of this node in the cluster.
+	 */
+	private int nodeId = defaultNodeId();
+
+	/**
+	 * The timestamp (shifted) and sequence of the last generated id.
+	 */
+	private final AtomicLong lastTimestampAndSequence = new AtomicLong();
+
+	/**
+	 * Returns the id of this node in the cluster.
+	 */
+	public int getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Sets the id of this node in the cluster, between 0 and
+	 * {@link #MAX_NODE_ID}. It must be distinct for each node.
+	 * 
+	 * @param nodeId
+	 *            the node id
+	 */
+	public void setNodeId(int nodeId) {
+		Assert.isTrue(nodeId >= 0 && nodeId <= MAX_NODE_ID,
+				"The nodeId must be between 0 and " + MAX_NODE_ID);
+		this.nodeId = nodeId;
+	}
+
+	@Override
+	public Serializable generateUid() {
+		return Long.valueOf(nextUid());
+	}
+
+	/**
+	 * Generate a new unique id as a primitive long.
+	 * 
+	 * @return the unique id
+	 */
+	public long nextUid() {
+		long last;
+		long next;
+		do {
+			last = lastTimestampAndSequence.get();
+			final long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+			// a new millisecond starts the sequence again, otherwise the
+			// sequence is incremented overflowing, if exhausted, into the
+			// timestamp
+			next = now > last ? now : last + 1;
+		} while (!lastTimestampAndSequence.compareAndSet(last, next));
+
+		final long timestamp = next >>> SEQUENCE_BITS;
+		final long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+		return (timestamp << (NODE_ID_BITS + SEQUENCE_BITS))
+				| ((long) nodeId << SEQUENCE_BITS) | sequence;
+	}
+
+	@Override
+	public Serializable parseUid(String encodedUid) {
+		return Long.valueOf(Long.parseLong(encodedUid));
+	}
+
+	private static int defaultNodeId() {
+		// "pid@hostname" in most JVMs
+		final String jvmName = ManagementFactory.getRuntimeMXBean().getName();
+		int hash = jvmName.hashCode();
+		hash ^= (hash >>> 20) ^ (hash >>> 10);
+		return hash & MAX_NODE_ID;
+	}
+}
@@ -0,0 +1,156 @@
+package com.github.gfernandez598.swf.conversation.optforrepl;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+import org.springframework.webflow.context.ExternalContextHolder;
+import org.springframework.webflow.conversation.ConversationId;
+import org.springframework.webflow.conversation.impl.SimpleConversationId;
+import org.springframework.webflow.test.MockExternalContext;
+
+/**
+ * Unit tests for the externalized format of {@link ContainedConversation},
+ * including a size comparison against the default serialization it replaced.
+ * Its speed is measured by the benchmarks module instead.
+ */
+public class ContainedConversationSerializationTest extends TestCase {
+
+	private SessionMapConversationContainer container;
+
+	protected void setUp() throws Exception {
+		ExternalContextHolder.setExternalContext(new MockExternalContext());
+		container = new SessionMapConversationContainer(5, 30,
+				"webflow.conversationContainer");
+	}
+
+	protected void tearDown() throws Exception {
+		ExternalContextHolder.setExternalContext(null);
+	}
+
+	public void testRoundTrip() throws Exception {
+		ContainedConversation conversation = newConversation(new UidConversationId(
+				UUID.randomUUID()));
+		conversation.putAttribute(Integer.valueOf(7), "non string name");
+		conversation.putAttribute("nullValue", null);
+
+		ContainedConversation copy = (ContainedConversation) deserialize(serialize(conversation));
+		assertEquals(conversation.getId(), copy.getId());
+		assertEquals("test", copy.getAttribute("name"));
+		assertEquals("caption", copy.getAttribute("caption"));
+		assertEquals("description", copy.getAttribute("description"));
+		assertEquals("testValue", copy.getAttribute("testAttribute"));
+		assertEquals("non string name", copy.getAttribute(Integer.valueOf(7)));
+		assertNull(copy.getAttribute("nullValue"));
+		copy.lock();
+		copy.unlock();
+	}
+
+	public void testRoundTripOfIds() throws Exception {
+		ConversationId[] ids = { new UidConversationId(UUID.randomUUID()),
+				new UidConversationId(Long.valueOf(Long.MAX_VALUE)),
+				new UidConversationId(Integer.valueOf(42)),
+				new UidConversationId("a string uid"),
+				new SimpleConversationId("foreign id") };
+		for (ConversationId id : ids) {
+			ContainedConversation copy = (ContainedConversation) deserialize(serialize(newConversation(id)));
+			assertEquals(id, copy.getId());
+			assertEquals(id.toString(), copy.getId().toString());
+		}
+	}
+
+	public void testSizeComparedToDefaultSerialization() throws Exception {
+		UUID uid = UUID.randomUUID();
+		ContainedConversation conversation = newConversation(new UidConversationId(
+				uid));
+		DefaultSerializedConversation reference = new DefaultSerializedConversation(
+				new SimpleConversationId(uid), container.getSessionKey(),
+				container.getLockTimeoutSeconds());
+		reference.attributes.put("name", "test");
+		reference.attributes.put("caption", "caption");
+		reference.attributes.put("description", "description");
+		reference.attributes.put("testAttribute", "testValue");
+
+		int compactSize = serialize(conversation).length;
+		int defaultSize = serialize(reference).length;
+
+		// no class descriptors nor field names: less than half the size
+		assertTrue("compact " + compactSize + " bytes, default " + defaultSize
+				+ " bytes", compactSize * 2 < defaultSize);
+	}
+
+	private ContainedConversation newConversation(ConversationId id) {
+		ContainedConversation conversation = new ContainedConversation(
+				container, id);
+		conversation.putAttribute("name", "test");
+		conversation.putAttribute("caption", "caption");
+		conversation.putAttribute("description", "description");
+		conversation.putAttribute("testAttribute", "testValue");
+		return conversation;
+	}
+
+	private byte[] serialize(Object object) throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ObjectOutputStream oout = new ObjectOutputStream(bout);
+		oout.writeObject(object);
+		oout.close();
+		return bout.toByteArray();
+	}
+
+	private Object deserialize(byte[] data) throws Exception {
+		return new ObjectInputStream(new ByteArrayInputStream(data))
+				.readObject();
+	}
+
+	/**
+	 * The same state as a {@link ContainedConversation}, written with the
+	 * default serialization as it used to be.
+	 */
+	private static class DefaultSerializedConversation implements
+			Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private ConversationId id;
+
+		private String sessionKey;
+
+		private int lockTimeoutSeconds;
+
+		private Map<Object, Object> attributes = new HashMap<Object, Object>();
+
+		DefaultSerializedConversation(ConversationId id, String sessionKey,
+				int lockTimeoutSeconds) {
+			this.id = id;
+			this.sessionKey = sessionKey;
+			this.lockTimeoutSeconds = lockTimeoutSeconds;
+		}
+	}
+}
@@ -22,20 +22,44 @@ package com.github.gfernandez598.swf.conversation.optforrepl;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpSessionBindingListener;
 
 import junit.framework.TestCase;
 
+import org.springframework.binding.collection.SharedMapDecorator;
 import org.springframework.webflow.context.ExternalContextHolder;
 import org.springframework.webflow.conversation.Conversation;
 import org.springframework.webflow.conversation.ConversationException;
 import org.springframework.webflow.conversation.ConversationId;
 import org.springframework.webflow.conversation.ConversationParameters;
+import org.springframework.webflow.conversation.impl.BadlyFormattedConversationIdException;
+import org.springframework.webflow.conversation.impl.LockTimeoutException;
+import org.springframework.webflow.core.collection.LocalSharedAttributeMap;
 import org.springframework.webflow.core.collection.SharedAttributeMap;
 import org.springframework.webflow.test.MockExternalContext;
 
 import com.github.gfernandez598.swf.conversation.optforrepl.ReplicationOptimizedSessionBindingConversationManager;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ConversationMetrics.LockKind;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.Histogram;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ConversationSize;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.HistogramConversationMetrics;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.HistogramReplicationMetrics;
+import com.github.gfernandez598.swf.conversation.optforrepl.metrics.ReplicationMetrics.BindKind;
 
 /**
  * Unit tests for {@link SessionBindingConversationManager}.
@@ -150,6 +174,269 @@ public class ReplicationOptimizedSessionBindingConversationManagerTest extends
 				.getConversation(conversation3.getId()));
 	}
 
+	public void testLruEviction() {
+		conversationManager.setMaxConversations(2);
+		conversationManager.setEvictionPolicy(EvictionPolicy.LRU);
+		ExternalContextHolder.setExternalContext(new MockExternalContext());
+		Conversation conversation1 = beginAndUnlockConversation();
+		Conversation conversation2 = beginAndUnlockConversation();
+		// the oldest one is the most recently used
+		useConversation(conversation1.getId());
+		beginAndUnlockConversation();
+		assertNotNull(conversationManager.getConversation(conversation1
+				.getId()));
+		try {
+			conversationManager.getConversation(conversation2.getId());
+			fail();
+		} catch (ConversationException e) {
+		}
+	}
+
+	public void testLfuEviction() throws Exception {
+		conversationManager.setMaxConversations(2);
+		conversationManager.setEvictionPolicy(EvictionPolicy.LFU);
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		Conversation conversation1 = beginAndUnlockConversation();
+		Conversation conversation2 = beginAndUnlockConversation();
+		useConversation(conversation1.getId());
+		useConversation(conversation1.getId());
+		useConversation(conversation2.getId());
+
+		// the frequencies survive passivation
+		externalContext.setSessionMap(activate(passivate(externalContext
+				.getSessionMap())));
+		// the new one, least used of all, is not evicted itself
+		Conversation conversation3 = beginAndUnlockConversation();
+		assertNotNull(conversationManager.getConversation(conversation3
+				.getId()));
+		assertNotNull(conversationManager.getConversation(conversation1
+				.getId()));
+		try {
+			conversationManager.getConversation(conversation2.getId());
+			fail();
+		} catch (ConversationException e) {
+		}
+	}
+
+	public void testMaxIdleSeconds() throws Exception {
+		conversationManager.setMaxIdleSeconds(1);
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		Conversation idle = beginAndUnlockConversation();
+		Conversation used = beginAndUnlockConversation();
+		for (int i = 0; i < 3; i++) {
+			Thread.sleep(400);
+			useConversation(used.getId());
+		}
+		try {
+			conversationManager.getConversation(idle.getId());
+			fail("Idle conversation should have been ended");
+		} catch (ConversationException e) {
+		}
+		assertNull(externalContext.getSessionMap().get(
+				"webflow.conversationContainer.conversation." + idle.getId()));
+		assertNotNull(conversationManager.getConversation(used.getId()));
+	}
+
+	public void testMaxIdleSecondsSparesHeldConversations() throws Exception {
+		conversationManager.setMaxIdleSeconds(1);
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		Conversation held = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		held.lock();
+		try {
+			// a long request
+			Thread.sleep(1100);
+			beginAndUnlockConversation();
+			assertNotNull(externalContext.getSessionMap().get(
+					"webflow.conversationContainer.conversation."
+							+ held.getId()));
+		} finally {
+			held.unlock();
+		}
+		// idle since unlocked
+		assertNotNull(conversationManager.getConversation(held.getId()));
+	}
+
+	public void testFailFastConversationLockFactory() throws Exception {
+		conversationManager
+				.setConversationLockFactory(new FailFastConversationLockFactory());
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		Conversation conversation = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		conversation.lock();
+		try {
+			assertTrue(lockInOtherRequest(externalContext, conversation,
+					false) instanceof ConversationBusyException);
+		} finally {
+			conversation.unlock();
+		}
+		assertNull(lockInOtherRequest(externalContext, conversation, false));
+	}
+
+	public void testReadWriteConversationLockFactory() throws Exception {
+		conversationManager
+				.setConversationLockFactory(new ReadWriteConversationLockFactory());
+		conversationManager.setLockTimeoutSeconds(0);
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		Conversation conversation = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		externalContext.getRequestMap().put(
+				ReadWriteConversationLockFactory.READ_ONLY_ATTRIBUTE,
+				Boolean.TRUE);
+		conversation.lock();
+		try {
+			// shared among read-only requests only
+			assertNull(lockInOtherRequest(externalContext, conversation, true));
+			assertTrue(lockInOtherRequest(externalContext, conversation, false) instanceof LockTimeoutException);
+		} finally {
+			conversation.unlock();
+		}
+	}
+
+	public void testReadOnlyRequestsLeaveConversationAsIs() throws Exception {
+		conversationManager
+				.setConversationLockFactory(new ReadWriteConversationLockFactory());
+		conversationManager.setConversationStore(new OffHeapConversationStore());
+		conversationManager.setDeduplicationThreshold(1024);
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		ContainedConversation conversation = (ContainedConversation) conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		conversation.lock();
+		conversation.putAttribute("snapshot", new byte[10000]);
+		conversation.unlock();
+		assertTrue(conversation.isPagedOut());
+
+		externalContext.getRequestMap().put(
+				ReadWriteConversationLockFactory.READ_ONLY_ATTRIBUTE,
+				Boolean.TRUE);
+		conversation.lock();
+		assertEquals(10000, ((byte[]) conversation.getAttribute("snapshot")).length);
+		conversation.unlock();
+		// neither resolved in place nor paged out again by a reader
+		assertTrue(conversation.getAttributeMap().get("snapshot") instanceof SharedValueReference);
+		assertFalse(conversation.isPagedOut());
+
+		externalContext.getRequestMap().remove(
+				ReadWriteConversationLockFactory.READ_ONLY_ATTRIBUTE);
+		conversation.lock();
+		conversation.unlock();
+		assertTrue(conversation.isPagedOut());
+	}
+
+	public void testConversationMetrics() throws Exception {
+		HistogramConversationMetrics metrics = new HistogramConversationMetrics();
+		conversationManager.setConversationMetrics(metrics);
+		conversationManager.setConversationMetricsSampleRate(1);
+		conversationManager
+				.setConversationLockFactory(new FailFastConversationLockFactory());
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		Conversation conversation = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		conversation.lock();
+		try {
+			assertTrue(lockInOtherRequest(externalContext, conversation,
+					false) instanceof ConversationBusyException);
+		} finally {
+			conversation.unlock();
+		}
+		assertEquals(1, metrics.getTimeouts(LockKind.CONVERSATION));
+		assertEquals(2, metrics.getWaitNanos(LockKind.CONVERSATION).getCount());
+		assertEquals(1, metrics.getHoldNanos(LockKind.CONVERSATION).getCount());
+		assertEquals(2, metrics.getQueueLength(LockKind.CONVERSATION)
+				.getCount());
+		assertTrue(metrics.getHoldNanos(LockKind.CONTAINER).getCount() > 0);
+		assertTrue(metrics.getHoldNanos(LockKind.SESSION).getCount() > 0);
+		assertEquals(0, metrics.getTimeouts(LockKind.SESSION));
+
+		// the metrics are handed again to replicated containers
+		externalContext.setSessionMap(activate(passivate(externalContext
+				.getSessionMap())));
+		long holds = metrics.getHoldNanos(LockKind.CONVERSATION).getCount();
+		useConversation(conversation.getId());
+		assertEquals(holds + 1, metrics.getHoldNanos(LockKind.CONVERSATION)
+				.getCount());
+	}
+
+	public void testHistogram() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getPercentile(99));
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(5050, histogram.getSum());
+		assertEquals(100, histogram.getMax());
+		assertEquals(50.5, histogram.getMean(), 0);
+		// upper bound of the bucket, at most twice the actual value
+		assertEquals(63, histogram.getPercentile(50));
+		assertEquals(100, histogram.getPercentile(99));
+	}
+
+	/**
+	 * Lock and unlock a conversation from another thread, in a request of the
+	 * same session.
+	 * 
+	 * @return the error locking it, if any
+	 */
+	private Throwable lockInOtherRequest(
+			final MockExternalContext sessionContext,
+			final Conversation conversation, final boolean readOnly)
+			throws Exception {
+		final Throwable[] error = new Throwable[1];
+		Thread request = new Thread() {
+			public void run() {
+				MockExternalContext externalContext = new MockExternalContext();
+				externalContext.setSessionMap(sessionContext.getSessionMap());
+				if (readOnly) {
+					externalContext.getRequestMap().put(
+							ReadWriteConversationLockFactory.READ_ONLY_ATTRIBUTE,
+							Boolean.TRUE);
+				}
+				ExternalContextHolder.setExternalContext(externalContext);
+				try {
+					conversation.lock();
+					conversation.unlock();
+				} catch (Throwable e) {
+					error[0] = e;
+				} finally {
+					ExternalContextHolder.setExternalContext(null);
+				}
+			}
+		};
+		request.start();
+		request.join(TimeUnit.SECONDS.toMillis(5));
+		assertFalse("Request blocked on the conversation lock",
+				request.isAlive());
+		return error[0];
+	}
+
+	private Conversation beginAndUnlockConversation() {
+		Conversation conversation = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		conversation.lock();
+		conversation.unlock();
+		return conversation;
+	}
+
+	private void useConversation(ConversationId id) {
+		Conversation conversation = conversationManager.getConversation(id);
+		conversation.lock();
+		conversation.unlock();
+	}
+
 	public void testCustomSessionKey() {
 		conversationManager.setSessionKey("foo");
 		MockExternalContext context = new MockExternalContext();
@@ -159,6 +446,841 @@ public class ReplicationOptimizedSessionBindingConversationManagerTest extends
 		assertNotNull(context.getSessionMap().get("foo"));
 	}
 
+	public void testCustomConversationKeyPrefix() {
+		conversationManager.setConversationKeyPrefix("c.");
+		MockExternalContext context = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(context);
+		Conversation conversation = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		assertNotNull(context.getSessionMap().get("c." + conversation.getId()));
+		assertSame(conversation,
+				conversationManager.getConversation(conversation.getId()));
+	}
+
+	public void testParsedConversationId() {
+		ExternalContextHolder.setExternalContext(new MockExternalContext());
+		Conversation conversation = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		ConversationId parsedId = conversationManager
+				.parseConversationId(conversation.getId().toString());
+		assertEquals(conversation.getId(), parsedId);
+		assertEquals(conversation.getId().hashCode(), parsedId.hashCode());
+
+		Conversation conversation2 = conversationManager
+				.getConversation(parsedId);
+		conversation2.lock();
+		conversation2.end();
+		conversation2.unlock();
+		assertEquals(0, ((SessionMapConversationContainer) ExternalContextHolder
+				.getExternalContext().getSessionMap()
+				.get("webflow.conversationContainer")).size());
+	}
+
+	public void testBadlyFormattedConversationId() {
+		try {
+			conversationManager.parseConversationId("foo");
+			fail();
+		} catch (BadlyFormattedConversationIdException e) {
+		}
+	}
+
+	public void testUnlockRebindsOnlyChanges() {
+		final List<String> puts = new ArrayList<String>();
+		MockExternalContext externalContext = new MockExternalContext();
+		externalContext.setSessionMap(new LocalSharedAttributeMap<Object>(
+				new SharedMapDecorator<String, Object>(
+						new HashMap<String, Object>()) {
+					public Object put(String key, Object value) {
+						puts.add(key);
+						return super.put(key, value);
+					}
+				}));
+		ExternalContextHolder.setExternalContext(externalContext);
+		Conversation conversation = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		conversation.lock();
+		conversation.putAttribute("testAttribute", "testValue");
+		conversation.unlock();
+
+		// a read-only request
+		puts.clear();
+		conversation = conversationManager.getConversation(conversation
+				.getId());
+		conversation.lock();
+		assertEquals("testValue", conversation.getAttribute("testAttribute"));
+		conversation.removeAttribute("missingAttribute");
+		conversation.unlock();
+		assertTrue(puts.toString(), puts.isEmpty());
+
+		// a request changing just the conversation
+		conversation.lock();
+		conversation.putAttribute("testAttribute", "otherValue");
+		conversation.unlock();
+		assertEquals(1, puts.size());
+		assertTrue(puts.get(0).contains(conversation.getId().toString()));
+
+		// a request ending the conversation just re-binds the index
+		puts.clear();
+		conversation.lock();
+		conversation.end();
+		conversation.unlock();
+		assertEquals(
+				Collections.singletonList(conversationManager.getSessionKey()
+						+ ".index"), puts);
+	}
+
+	public void testCompression() throws Exception {
+		StringBuilder snapshot = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			snapshot.append("flow execution snapshot ").append(i % 10);
+		}
+		beginConversationWithAttribute(snapshot.toString());
+		int uncompressedSize = passivate(
+				ExternalContextHolder.getExternalContext().getSessionMap()).length;
+
+		conversationManager.setCompressionThreshold(1024);
+		Conversation conversation = beginConversationWithAttribute(snapshot
+				.toString());
+		MockExternalContext externalContext = (MockExternalContext) ExternalContextHolder
+				.getExternalContext();
+		byte[] passiveSession = passivate(externalContext.getSessionMap());
+		assertTrue(passiveSession.length < uncompressedSize / 4);
+
+		externalContext.setSessionMap(activate(passiveSession));
+		Conversation conversation2 = conversationManager
+				.getConversation(conversation.getId());
+		assertNotSame(conversation, conversation2);
+		assertSame(conversation2,
+				conversationManager.getConversation(conversation.getId()));
+		conversation2.lock();
+		assertEquals(snapshot.toString(),
+				conversation2.getAttribute("testAttribute"));
+		conversation2.unlock();
+	}
+
+	public void testExportAndImportConversations() throws Exception {
+		conversationManager.setMaxConversations(20);
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		List<ConversationId> ids = new ArrayList<ConversationId>();
+		for (int i = 0; i < 20; i++) {
+			Conversation conversation = conversationManager
+					.beginConversation(new ConversationParameters("test",
+							"test", "test"));
+			conversation.lock();
+			conversation.putAttribute("testAttribute", i);
+			conversation.unlock();
+			ids.add(conversation.getId());
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(20, conversationManager.exportConversations(out));
+		File directory = File.createTempFile("conversations", "");
+		assertTrue(directory.delete());
+		assertEquals(20, conversationManager.exportConversations(directory));
+
+		try {
+			ExternalContextHolder.setExternalContext(new MockExternalContext());
+			assertEquals(20, conversationManager
+					.importConversations(new ByteArrayInputStream(out
+							.toByteArray())));
+			assertImported(ids);
+			// already there
+			assertEquals(0, conversationManager.importConversations(directory));
+
+			ExternalContextHolder.setExternalContext(new MockExternalContext());
+			assertEquals(20, conversationManager.importConversations(directory));
+			assertImported(ids);
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	private void assertImported(List<ConversationId> ids) {
+		for (int i = 0; i < ids.size(); i++) {
+			Conversation conversation = conversationManager.getConversation(ids
+					.get(i));
+			conversation.lock();
+			assertEquals(i, conversation.getAttribute("testAttribute"));
+			conversation.unlock();
+		}
+	}
+
+	public void testLazyActivation() throws Exception {
+		conversationManager.setLazyActivation(true);
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		Conversation used = beginAndUnlockConversation();
+		Conversation untouched = beginAndUnlockConversation();
+
+		externalContext.setSessionMap(activate(passivate(externalContext
+				.getSessionMap())));
+		String prefix = conversationManager.getSessionKey() + ".conversation.";
+		String usedKey = prefix + used.getId();
+		String untouchedKey = prefix + untouched.getId();
+		assertFalse(((ConversationHolder) externalContext.getSessionMap().get(
+				usedKey)).isInflated());
+		useConversation(used.getId());
+		assertTrue(((ConversationHolder) externalContext.getSessionMap().get(
+				usedKey)).isInflated());
+		// still serialized, and written as read
+		assertFalse(((ConversationHolder) externalContext.getSessionMap().get(
+				untouchedKey)).isInflated());
+		externalContext.setSessionMap(activate(passivate(externalContext
+				.getSessionMap())));
+		Conversation conversation = conversationManager
+				.getConversation(untouched.getId());
+		conversation.lock();
+		assertEquals("test", conversation.getAttribute("name"));
+		conversation.unlock();
+	}
+
+	public void testSessionWritesBuffered() throws Exception {
+		HistogramConversationMetrics metrics = new HistogramConversationMetrics();
+		conversationManager.setConversationMetrics(metrics);
+		conversationManager.setConversationMetricsSampleRate(1);
+		conversationManager
+				.setReplicationGranularity(ReplicationGranularity.ATTRIBUTE);
+		conversationManager.setMaxConversations(1);
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		Conversation evicted = beginAndUnlockConversation();
+
+		// the container looked up without locking, then the new conversation
+		// and the evicted one at once
+		long acquired = metrics.getHoldNanos(LockKind.SESSION).getCount();
+		Conversation conversation = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		assertEquals(acquired + 1, metrics.getHoldNanos(LockKind.SESSION)
+				.getCount());
+		String prefix = conversationManager.getSessionKey() + ".conversation.";
+		assertNull(externalContext.getSessionMap().get(
+				prefix + evicted.getId()));
+		assertNotNull(externalContext.getSessionMap().get(
+				prefix + conversation.getId()));
+
+		// the index, the conversation and its attributes at once
+		conversation.lock();
+		conversation.putAttribute("first", "1");
+		conversation.putAttribute("second", "2");
+		conversation.removeAttribute("name");
+		acquired = metrics.getHoldNanos(LockKind.SESSION).getCount();
+		conversation.unlock();
+		assertEquals(acquired + 1, metrics.getHoldNanos(LockKind.SESSION)
+				.getCount());
+		assertEquals("2", externalContext.getSessionMap().get(
+				DeltaReplicatedConversation.getAttributeKey(
+						prefix + conversation.getId(), "second")));
+		assertNull(externalContext.getSessionMap().get(
+				DeltaReplicatedConversation.getAttributeKey(
+						prefix + conversation.getId(), "name")));
+
+		// ending it removes every slot at once
+		conversation = conversationManager.getConversation(conversation
+				.getId());
+		acquired = metrics.getHoldNanos(LockKind.SESSION).getCount();
+		conversation.end();
+		assertEquals(acquired + 1, metrics.getHoldNanos(LockKind.SESSION)
+				.getCount());
+		for (Object key : externalContext.getSessionMap().asMap().keySet()) {
+			assertFalse(((String) key).startsWith(prefix));
+		}
+	}
+
+	public void testDeduplication() throws Exception {
+		conversationManager.setDeduplicationThreshold(1024);
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		Conversation first = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		first.lock();
+		first.putAttribute("snapshot", new byte[10000]);
+		first.putAttribute("name", "first");
+		first.unlock();
+		Conversation second = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		second.lock();
+		second.putAttribute("snapshot", new byte[10000]);
+		second.putAttribute("name", "second");
+		second.unlock();
+		SessionMapConversationContainer container = (SessionMapConversationContainer) externalContext
+				.getSessionMap().get(conversationManager.getSessionKey());
+		assertEquals(1, container.getSharedValueCount());
+
+		// read back through the shared copy
+		externalContext.setSessionMap(activate(passivate(externalContext
+				.getSessionMap())));
+		container = (SessionMapConversationContainer) externalContext
+				.getSessionMap().get(conversationManager.getSessionKey());
+		assertEquals(1, container.getSharedValueCount());
+		Conversation conversation = conversationManager.getConversation(second
+				.getId());
+		conversation.lock();
+		assertEquals(10000, ((byte[]) conversation.getAttribute("snapshot")).length);
+		assertEquals("second", conversation.getAttribute("name"));
+		conversation.unlock();
+
+		// a value changed in place is no longer shared
+		conversation = conversationManager.getConversation(first.getId());
+		conversation.lock();
+		((byte[]) conversation.getAttribute("snapshot"))[0] = 1;
+		conversation.putAttribute("name", "changed");
+		conversation.unlock();
+		assertEquals(2, container.getSharedValueCount());
+
+		conversationManager.getConversation(first.getId()).end();
+		assertEquals(1, container.getSharedValueCount());
+		conversationManager.getConversation(second.getId()).end();
+		assertEquals(0, container.getSharedValueCount());
+		for (Object key : externalContext.getSessionMap().asMap().keySet()) {
+			assertFalse(((String) key).startsWith(conversationManager
+					.getSessionKey() + ".shared."));
+		}
+	}
+
+	public void testCompressionBelowThreshold() throws Exception {
+		conversationManager.setCompressionThreshold(1024 * 1024);
+		testPassivation();
+	}
+
+	/**
+	 * Begin a conversation in a new session, holding the given attribute.
+	 */
+	private Conversation beginConversationWithAttribute(Object value) {
+		ExternalContextHolder.setExternalContext(new MockExternalContext());
+		Conversation conversation = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		conversation.lock();
+		conversation.putAttribute("testAttribute", value);
+		conversation.unlock();
+		return conversation;
+	}
+
+	public void testReplicationMetrics() {
+		HistogramReplicationMetrics metrics = new HistogramReplicationMetrics();
+		conversationManager.setReplicationMetrics(metrics);
+		conversationManager.setReplicationMetricsSampleRate(1);
+		Conversation conversation = beginConversationWithAttribute(new byte[10000]);
+		// the container, the new conversation, the index and the conversation
+		// again once written
+		assertEquals(1, metrics.getRequestBinds().getCount());
+		assertEquals(4, metrics.getRequestBinds().getMax());
+		assertEquals(1, metrics.getBoundBytes(BindKind.CONTAINER).getCount());
+		assertEquals(1, metrics.getBoundBytes(BindKind.INDEX).getCount());
+		assertEquals(2, metrics.getBoundBytes(BindKind.CONVERSATION).getCount());
+		assertTrue(metrics.getBoundBytes(BindKind.CONVERSATION).getMax() > 10000);
+		assertTrue(metrics.getRequestBytes().getMax() > 10000);
+
+		// a request just writing the conversation binds it alone
+		conversation.lock();
+		conversation.putAttribute("testAttribute", "small");
+		conversation.unlock();
+		assertEquals(2, metrics.getRequestBinds().getCount());
+		assertEquals(1, metrics.getRequestBinds().getPercentile(50));
+
+		List<ConversationSize> largest = metrics.getLargestConversations();
+		assertEquals(1, largest.size());
+		assertEquals(conversation.getId().toString(), largest.get(0)
+				.getConversationId());
+		assertTrue(largest.get(0).getBytes() > 10000);
+	}
+
+	public void testOffHeapConversationStore() throws Exception {
+		OffHeapConversationStore store = new OffHeapConversationStore();
+		store.setBlockSize(64);
+		store.setSegmentSize(1024);
+		conversationManager.setConversationStore(store);
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		Conversation conversation = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		conversation.lock();
+		conversation.putAttribute("testAttribute", "testValue");
+		conversation.unlock();
+		// just a handle is left in the session
+		assertTrue(((ContainedConversation) conversation).isPagedOut());
+		assertEquals(1, store.getStoredCount());
+
+		Conversation conversation2 = conversationManager
+				.getConversation(conversation.getId());
+		assertSame(conversation, conversation2);
+		conversation2.lock();
+		assertEquals("testValue", conversation2.getAttribute("testAttribute"));
+		assertEquals("test", conversation2.getAttribute("name"));
+		conversation2.putAttribute("testAttribute", new byte[3000]);
+		conversation2.unlock();
+		assertTrue(((ContainedConversation) conversation2).isPagedOut());
+		assertEquals(1, store.getStoredCount());
+
+		// replicas carry the whole state
+		SharedAttributeMap<Object> replica = activate(passivate(externalContext
+				.getSessionMap()));
+		MockExternalContext replicaContext = new MockExternalContext();
+		replicaContext.setSessionMap(replica);
+		ExternalContextHolder.setExternalContext(replicaContext);
+		Conversation replicated = new ReplicationOptimizedSessionBindingConversationManager()
+				.getConversation(conversation.getId());
+		assertEquals(3000,
+				((byte[]) replicated.getAttribute("testAttribute")).length);
+
+		ExternalContextHolder.setExternalContext(externalContext);
+		conversation.lock();
+		conversation.end();
+		conversation.unlock();
+		assertEquals(0, store.getStoredCount());
+	}
+
+	public void testOffHeapConversationStoreFull() {
+		OffHeapConversationStore store = new OffHeapConversationStore();
+		store.setBlockSize(64);
+		store.setSegmentSize(1024);
+		store.setCapacity(1024);
+		conversationManager.setConversationStore(store);
+		Conversation small = beginConversationWithAttribute("testValue");
+		Conversation big = beginConversationWithAttribute(new byte[2000]);
+		assertTrue(((ContainedConversation) small).isPagedOut());
+		// does not fit, kept on the heap
+		assertFalse(((ContainedConversation) big).isPagedOut());
+		big.lock();
+		assertEquals(2000, ((byte[]) big.getAttribute("testAttribute")).length);
+		big.unlock();
+	}
+
+	public void testStoredConversationsReleaserReadBack() throws Exception {
+		EmbeddedConversationStore store = new EmbeddedConversationStore();
+		StoredConversationsReleaser releaser = new StoredConversationsReleaser(
+				store);
+		releaser.stored("stored");
+		SharedAttributeMap<Object> session = new LocalSharedAttributeMap<Object>(
+				new SharedMapDecorator<String, Object>(
+						new HashMap<String, Object>()));
+		session.put("releaser", releaser);
+
+		// knows nothing of the states of the other node, but still usable
+		StoredConversationsReleaser copy = (StoredConversationsReleaser) activate(
+				passivate(session)).get("releaser");
+		assertNull(copy.getStore());
+		copy.removed("stored");
+		copy.stored("other");
+		copy.valueUnbound(null);
+	}
+
+	public void testExternalConversationStore() throws Exception {
+		EmbeddedConversationStore server = new EmbeddedConversationStore();
+		NearCachedConversationStore store = new NearCachedConversationStore(
+				server);
+		conversationManager.setConversationStore(store);
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		Conversation conversation = beginAndUnlockConversation();
+		conversation.lock();
+		conversation.putAttribute("testAttribute", new byte[10000]);
+		long roundTrips = server.getRoundTrips();
+		conversation.unlock();
+		// the new state and the removal of the previous one, pipelined
+		assertEquals(roundTrips + 1, server.getRoundTrips());
+		assertEquals(1, server.getStoredCount());
+
+		// the conversation being executed is read from the near cache
+		useConversation(conversation.getId());
+		assertEquals(roundTrips + 1, server.getRoundTrips());
+		assertTrue(store.getHits() > 0);
+
+		// the session carries just the keys of the states
+		byte[] session = passivate(externalContext.getSessionMap());
+		assertTrue(session.length < 5000);
+
+		// another node reads them from the server
+		NearCachedConversationStore otherStore = new NearCachedConversationStore(
+				server);
+		ReplicationOptimizedSessionBindingConversationManager otherManager = new ReplicationOptimizedSessionBindingConversationManager();
+		otherManager.setConversationStore(otherStore);
+		MockExternalContext otherContext = new MockExternalContext();
+		otherContext.setSessionMap(activate(session));
+		ExternalContextHolder.setExternalContext(otherContext);
+		Conversation replicated = otherManager.getConversation(conversation
+				.getId());
+		replicated.lock();
+		assertEquals(10000,
+				((byte[]) replicated.getAttribute("testAttribute")).length);
+		assertEquals(1, otherStore.getMisses());
+		replicated.end();
+		replicated.unlock();
+		assertEquals(0, server.getStoredCount());
+	}
+
+	public void testExternalStateRemovedWhenNotPagedIn() throws Exception {
+		EmbeddedConversationStore server = new EmbeddedConversationStore();
+		conversationManager.setConversationStore(server);
+		Conversation conversation = beginConversationWithAttribute(new byte[10000]);
+		MockExternalContext externalContext = (MockExternalContext) ExternalContextHolder
+				.getExternalContext();
+		assertEquals(1, server.getStoredCount());
+
+		// ended on another node before being read there, with no unlock
+		ReplicationOptimizedSessionBindingConversationManager otherManager = new ReplicationOptimizedSessionBindingConversationManager();
+		otherManager.setConversationStore(server);
+		MockExternalContext otherContext = new MockExternalContext();
+		otherContext.setSessionMap(activate(passivate(externalContext
+				.getSessionMap())));
+		ExternalContextHolder.setExternalContext(otherContext);
+		otherManager.getConversation(conversation.getId()).end();
+		assertEquals(0, server.getStoredCount());
+	}
+
+	public void testWriteBehindConversationStore() throws Exception {
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch released = new CountDownLatch(1);
+		final List<Integer> writes = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		EmbeddedConversationStore server = new EmbeddedConversationStore() {
+			public void write(Map<String, byte[]> states,
+					Collection<String> removedKeys) {
+				writing.countDown();
+				try {
+					released.await();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+				writes.add(states.size() + removedKeys.size());
+				super.write(states, removedKeys);
+			}
+		};
+		WriteBehindConversationStore store = new WriteBehindConversationStore(
+				server);
+		conversationManager.setConversationStore(store);
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		try {
+			// the first state is being sent, the store is stuck
+			Conversation conversation = beginAndUnlockConversation();
+			assertTrue(writing.await(10, TimeUnit.SECONDS));
+			for (int i = 0; i < 3; i++) {
+				conversation.lock();
+				conversation.putAttribute("testAttribute", i);
+				conversation.unlock();
+			}
+			// read your writes, none has reached the store yet
+			conversation.lock();
+			assertEquals(2, conversation.getAttribute("testAttribute"));
+			conversation.unlock();
+			assertEquals(0, server.getStoredCount());
+			// the last state and the removal of the first one
+			assertEquals(2, store.getPendingWrites());
+
+			released.countDown();
+			assertTrue(store.flush(10000));
+			assertEquals(Arrays.asList(1, 2), writes);
+			assertEquals(1, server.getStoredCount());
+		} finally {
+			released.countDown();
+			store.close();
+		}
+	}
+
+	public void testPageOutIdleSeconds() throws Exception {
+		MappedFileConversationStore store = new MappedFileConversationStore();
+		store.setBlockSize(64);
+		store.setSegmentSize(1024);
+		conversationManager.setConversationStore(store);
+		conversationManager.setPageOutIdleSeconds(1);
+		MockExternalContext externalContext = new MockExternalContext();
+		ExternalContextHolder.setExternalContext(externalContext);
+		try {
+			ContainedConversation idle = (ContainedConversation) beginAndUnlockConversation();
+			ContainedConversation used = (ContainedConversation) beginAndUnlockConversation();
+			// in use, kept on the heap
+			assertFalse(idle.isPagedOut());
+			assertFalse(used.isPagedOut());
+			assertNull(store.getFile());
+
+			Thread.sleep(1100);
+			useConversation(used.getId());
+			assertTrue(idle.isPagedOut());
+			assertFalse(used.isPagedOut());
+			assertEquals(1, store.getStoredCount());
+			assertTrue(store.getFile().exists());
+
+			// paged back in transparently
+			Conversation conversation = conversationManager
+					.getConversation(idle.getId());
+			assertSame(idle, conversation);
+			conversation.lock();
+			assertEquals("test", conversation.getAttribute("name"));
+			conversation.unlock();
+			assertFalse(idle.isPagedOut());
+			// the stored copy is still up to date
+			assertEquals(1, store.getStoredCount());
+			conversation.lock();
+			conversation.putAttribute("testAttribute", "testValue");
+			conversation.unlock();
+			assertEquals(0, store.getStoredCount());
+		} finally {
+			store.close();
+		}
+		assertFalse(store.getFile().exists());
+	}
+
+	public void testStoredConversationsReleasedWithSession() {
+		OffHeapConversationStore store = new OffHeapConversationStore();
+		conversationManager.setConversationStore(store);
+		ExternalContextHolder.setExternalContext(new MockExternalContext());
+		beginAndUnlockConversation();
+		beginAndUnlockConversation();
+		assertEquals(2, store.getStoredCount());
+		// the session expires
+		for (Object value : ExternalContextHolder.getExternalContext()
+				.getSessionMap().asMap().values()) {
+			if (value instanceof HttpSessionBindingListener) {
+				((HttpSessionBindingListener) value).valueUnbound(null);
+			}
+		}
+		assertEquals(0, store.getStoredCount());
+	}
+
+	public void testAttributeReplicationGranularity() throws Exception {
+		conversationManager
+				.setReplicationGranularity(ReplicationGranularity.ATTRIBUTE);
+		testConversationLifeCycle();
+		testNoPassivation();
+		testPassivation();
+		testMaxConversations();
+	}
+
+	public void testAttributeReplicationGranularityPublishesChangesOnly()
+			throws Exception {
+		conversationManager
+				.setReplicationGranularity(ReplicationGranularity.ATTRIBUTE);
+		final List<String> puts = new ArrayList<String>();
+		MockExternalContext externalContext = new MockExternalContext();
+		externalContext.setSessionMap(new LocalSharedAttributeMap<Object>(
+				new SharedMapDecorator<String, Object>(
+						new HashMap<String, Object>()) {
+					public Object put(String key, Object value) {
+						puts.add(key);
+						return super.put(key, value);
+					}
+				}));
+		ExternalContextHolder.setExternalContext(externalContext);
+		Conversation conversation = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		conversation.lock();
+		conversation.putAttribute("snapshot", "a big snapshot");
+		conversation.putAttribute("small", "value");
+		conversation.unlock();
+
+		// just the small attribute changes
+		puts.clear();
+		conversation.lock();
+		conversation.putAttribute("small", "otherValue");
+		conversation.unlock();
+		assertEquals(1, puts.size());
+		assertTrue(puts.get(0).endsWith(".attribute.small"));
+
+		// removing an attribute re-binds the conversation with its names
+		puts.clear();
+		conversation.lock();
+		conversation.removeAttribute("small");
+		conversation.unlock();
+		assertEquals(1, puts.size());
+		assertFalse(puts.get(0).endsWith(".attribute.small"));
+		assertNull(externalContext.getSessionMap().get(puts.get(0)
+				+ ".attribute.small"));
+
+		// values are loaded lazily from their own slots when read back
+		externalContext.setSessionMap(activate(passivate(new LocalSharedAttributeMap<Object>(
+				new SharedMapDecorator<String, Object>(
+						new HashMap<String, Object>(externalContext
+								.getSessionMap().asMap()))))));
+		Conversation conversation2 = conversationManager
+				.getConversation(conversation.getId());
+		conversation2.lock();
+		assertEquals("a big snapshot", conversation2.getAttribute("snapshot"));
+		assertEquals("test", conversation2.getAttribute("name"));
+		assertNull(conversation2.getAttribute("small"));
+		conversation2.end();
+		conversation2.unlock();
+
+		// ending the conversation removes all its slots
+		assertEquals(2, externalContext.getSessionMap().size());
+	}
+
+	public void testAttributeReplicationGranularityPublishesValuesChangedInPlace()
+			throws Exception {
+		conversationManager
+				.setReplicationGranularity(ReplicationGranularity.ATTRIBUTE);
+		// other node gets a copy of each value when put, as replicated
+		final Map<String, byte[]> replica = new HashMap<String, byte[]>();
+		MockExternalContext externalContext = new MockExternalContext();
+		externalContext.setSessionMap(new LocalSharedAttributeMap<Object>(
+				new SharedMapDecorator<String, Object>(
+						new HashMap<String, Object>()) {
+					public Object put(String key, Object value) {
+						try {
+							replica.put(key, serialize(value));
+						} catch (IOException e) {
+							throw new IllegalStateException(e);
+						}
+						return super.put(key, value);
+					}
+
+					public Object remove(Object key) {
+						replica.remove(key);
+						return super.remove(key);
+					}
+				}));
+		ExternalContextHolder.setExternalContext(externalContext);
+		Conversation conversation = conversationManager
+				.beginConversation(new ConversationParameters("test", "test",
+						"test"));
+		conversation.lock();
+		conversation.putAttribute("snapshotGroup", new ArrayList<String>(
+				Collections.singletonList("snapshot1")));
+		conversation.unlock();
+
+		// the group is read and changed, but not put again
+		conversation.lock();
+		@SuppressWarnings("unchecked")
+		List<String> snapshotGroup = (List<String>) conversation
+				.getAttribute("snapshotGroup");
+		snapshotGroup.add("snapshot2");
+		conversation.unlock();
+
+		Map<String, Object> replicated = new HashMap<String, Object>();
+		for (Map.Entry<String, byte[]> slot : replica.entrySet()) {
+			replicated.put(slot.getKey(), new ObjectInputStream(
+					new ByteArrayInputStream(slot.getValue())).readObject());
+		}
+		externalContext.setSessionMap(new LocalSharedAttributeMap<Object>(
+				new SharedMapDecorator<String, Object>(replicated)));
+		Conversation copy = conversationManager.getConversation(conversation
+				.getId());
+		copy.lock();
+		assertEquals(Arrays.asList("snapshot1", "snapshot2"),
+				copy.getAttribute("snapshotGroup"));
+		copy.unlock();
+	}
+
+	public void testConversationLockingMode() {
+		conversationManager
+				.setContainerLockingMode(ContainerLockingMode.CONVERSATION);
+		testConversationLifeCycle();
+		testNoPassivation();
+		testMaxConversations();
+	}
+
+	public void testConversationLockingModePassivation() throws Exception {
+		conversationManager
+				.setContainerLockingMode(ContainerLockingMode.CONVERSATION);
+		testPassivation();
+	}
+
+	public void testConcurrentRequests() throws Exception {
+		doTestConcurrentRequests();
+	}
+
+	public void testVirtualThreadsLockingMode() {
+		conversationManager
+				.setContainerLockingMode(ContainerLockingMode.VIRTUAL_THREADS);
+		testConversationLifeCycle();
+		testNoPassivation();
+		testMaxConversations();
+	}
+
+	public void testVirtualThreadsLockingModePassivation() throws Exception {
+		conversationManager
+				.setContainerLockingMode(ContainerLockingMode.VIRTUAL_THREADS);
+		testPassivation();
+	}
+
+	public void testConcurrentRequestsVirtualThreadsLockingMode()
+			throws Exception {
+		conversationManager
+				.setContainerLockingMode(ContainerLockingMode.VIRTUAL_THREADS);
+		doTestConcurrentRequests();
+	}
+
+	public void testConcurrentRequestsConversationLockingMode()
+			throws Exception {
+		conversationManager
+				.setContainerLockingMode(ContainerLockingMode.CONVERSATION);
+		doTestConcurrentRequests();
+	}
+
+	/**
+	 * Several threads playing concurrent requests of the same session: looking
+	 * up, locking, unlocking, beginning and ending conversations.
+	 */
+	private void doTestConcurrentRequests() throws Exception {
+		final int threads = 4;
+		final int requests = 500;
+		conversationManager.setMaxConversations(threads * 2);
+		final SharedAttributeMap<Object> sessionMap = new LocalSharedAttributeMap<Object>(
+				new SharedMapDecorator<String, Object>(
+						new ConcurrentHashMap<String, Object>()));
+		final ConversationId[] conversationIds = new ConversationId[threads];
+		MockExternalContext externalContext = new MockExternalContext();
+		externalContext.setSessionMap(sessionMap);
+		ExternalContextHolder.setExternalContext(externalContext);
+		for (int i = 0; i < threads; i++) {
+			conversationIds[i] = conversationManager.beginConversation(
+					new ConversationParameters("test", "test", "test"))
+					.getId();
+		}
+
+		final List<Throwable> errors = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final ConversationId conversationId = conversationIds[i];
+			workers[i] = new Thread() {
+				public void run() {
+					MockExternalContext externalContext = new MockExternalContext();
+					externalContext.setSessionMap(sessionMap);
+					ExternalContextHolder.setExternalContext(externalContext);
+					try {
+						for (int j = 0; j < requests; j++) {
+							Conversation conversation = conversationManager
+									.getConversation(conversationId);
+							conversation.lock();
+							conversation.putAttribute("request", j);
+							conversation.unlock();
+							// and a short lived one
+							conversation = conversationManager
+									.beginConversation(new ConversationParameters(
+											"test", "test", "test"));
+							conversation.lock();
+							conversation.end();
+							conversation.unlock();
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					} finally {
+						ExternalContextHolder.setExternalContext(null);
+					}
+				}
+			};
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join(TimeUnit.SECONDS.toMillis(30));
+			assertFalse("Deadlock between concurrent requests",
+					worker.isAlive());
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+
 	private byte[] passivate(SharedAttributeMap<Object> session)
 			throws Exception {
 		// session is serialized out
@@ -168,6 +1290,14 @@ public class ReplicationOptimizedSessionBindingConversationManagerTest extends
 		return bout.toByteArray();
 	}
 
+	private static byte[] serialize(Object value) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ObjectOutputStream oout = new ObjectOutputStream(bout);
+		oout.writeObject(value);
+		oout.close();
+		return bout.toByteArray();
+	}
+
 	@SuppressWarnings("unchecked")
 	private SharedAttributeMap<Object> activate(byte[] sessionData)
 			throws Exception {
@@ -0,0 +1,98 @@
+package com.github.gfernandez598.swf.util;
+
+/*
+ * #%L
+ * Spring Web Flow OptForRepl
+ * %%
+ * Copyright (C) 2015 gfernandez598
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link SnowflakeUidGenerator}.
+ */
+public class SnowflakeUidGeneratorTest extends TestCase {
+
+	private SnowflakeUidGenerator generator;
+
+	protected void setUp() throws Exception {
+		generator = new SnowflakeUidGenerator();
+	}
+
+	public void testIncreasingUids() {
+		long last = generator.nextUid();
+		// more than a sequence per millisecond can hold
+		for (int i = 0; i < 10000; i++) {
+			long uid = generator.nextUid();
+			assertTrue(uid > last);
+			last = uid;
+		}
+	}
+
+	public void testParseUid() {
+		Serializable uid = generator.generateUid();
+		assertEquals(uid, generator.parseUid(uid.toString()));
+	}
+
+	public void testParseBadlyFormattedUid() {
+		try {
+			generator.parseUid("not a number");
+			fail();
+		} catch (NumberFormatException e) {
+		}
+	}
+
+	public void testNodeId() {
+		SnowflakeUidGenerator other = new SnowflakeUidGenerator();
+		generator.setNodeId(1);
+		other.setNodeId(2);
+		assertFalse(generator.nextUid() == other.nextUid());
+		try {
+			generator.setNodeId(SnowflakeUidGenerator.MAX_NODE_ID + 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testUniqueUidsAmongThreads() throws Exception {
+		final int threads = 4;
+		final int uids = 20000;
+		final Set<Long> generated = Collections
+				.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < uids; j++) {
+						generated.add(generator.nextUid());
+					}
+				}
+			};
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join(TimeUnit.SECONDS.toMillis(30));
+		}
+		assertEquals(threads * uids, generated.size());
+	}
+}